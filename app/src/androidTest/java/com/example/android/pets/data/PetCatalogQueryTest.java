@@ -0,0 +1,56 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class PetCatalogQueryTest {
+
+    @Test
+    public void catalogQueriesAreAnsweredByAnIndex() {
+        // Throws listing the queries left without a supporting index by a schema change
+        PetQueryPlanChecker.verify();
+    }
+
+    @Test
+    public void defaultQueryIsSortedByName() {
+        PetCatalogQuery query = PetCatalogQuery.fromUri(PetEntry.CONTENT_URI, null, null, null);
+
+        PetCatalogQuery byName = PetCatalogQuery.fromUri(
+                PetEntry.buildCatalogUri(PetEntry.SORT_NAME_ASC, null, null), null, null, null);
+        assertEquals(byName.sortOrder, query.sortOrder);
+    }
+
+    @Test
+    public void callerSortOrderIsPassedThrough() {
+        String sortOrder = PetEntry.COLUMN_PET_BREED + " ASC";
+        PetCatalogQuery query = PetCatalogQuery.fromUri(PetEntry.CONTENT_URI, null, null, sortOrder);
+
+        assertEquals(sortOrder, query.sortOrder);
+        assertFalse(PetCatalogQuery.isSupportedSortOrder(sortOrder));
+    }
+
+    @Test
+    public void uriSortOrderTakesPrecedence() {
+        Uri uri = PetEntry.buildCatalogUri(PetEntry.SORT_WEIGHT_DESC, null, null);
+        PetCatalogQuery query = PetCatalogQuery.fromUri(uri, null, null, PetEntry.COLUMN_PET_BREED + " ASC");
+
+        assertTrue(PetCatalogQuery.isSupportedSortOrder(query.sortOrder));
+        assertTrue(query.sortOrder.startsWith(PetEntry.COLUMN_PET_WEIGHT + " DESC"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSortKeyIsRejected() {
+        PetCatalogQuery.fromUri(PetEntry.buildCatalogUri("unknown", null, null), null, null, null);
+    }
+
+}
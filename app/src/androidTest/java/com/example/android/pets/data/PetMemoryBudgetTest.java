@@ -0,0 +1,165 @@
+package com.example.android.pets.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class PetMemoryBudgetTest {
+
+    private static final String SHELTER = "memory_test";
+
+    private static final int CONSUMER_BYTES = 64 * 1024;
+
+    private Context mContext;
+    private PetMemoryBudget mBudget;
+    private final List<FakeConsumer> mConsumers = new ArrayList<>();
+
+    /**
+     * Holds an array, dropped by any trim
+     */
+    private static final class FakeConsumer implements PetMemoryBudget.Consumer {
+
+        private final String mName;
+        private byte[] mData = new byte[CONSUMER_BYTES];
+
+        private FakeConsumer(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public long getMemoryUsage() {
+            return mData != null ? mData.length : 0;
+        }
+
+        @Override
+        public long trimMemory(int level) {
+            long released = getMemoryUsage();
+            mData = null;
+            return released;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mBudget = PetMemoryBudget.getInstance(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        for (FakeConsumer consumer : mConsumers) {
+            mBudget.unregister(consumer);
+        }
+    }
+
+    private FakeConsumer register(String name, int priority) {
+        FakeConsumer consumer = new FakeConsumer(name);
+        mBudget.register(consumer, priority);
+        mConsumers.add(consumer);
+        return consumer;
+    }
+
+    @Test
+    public void higherTrimLevelsReleaseMoreConsumers() {
+        FakeConsumer sqlite = register("sqlite", PetMemoryBudget.PRIORITY_SQLITE);
+        FakeConsumer offScreen = register("off screen", PetMemoryBudget.PRIORITY_OFF_SCREEN);
+        FakeConsumer cache = register("cache", PetMemoryBudget.PRIORITY_CACHE);
+
+        long before = mBudget.getUsage();
+        long released = mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(0, sqlite.getMemoryUsage());
+        assertEquals(CONSUMER_BYTES, offScreen.getMemoryUsage());
+        assertEquals(CONSUMER_BYTES, cache.getMemoryUsage());
+        assertTrue(released >= CONSUMER_BYTES);
+        assertTrue(mBudget.getUsage() <= before - CONSUMER_BYTES);
+
+        mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0, offScreen.getMemoryUsage());
+        assertEquals(CONSUMER_BYTES, cache.getMemoryUsage());
+
+        mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, cache.getMemoryUsage());
+    }
+
+    @Test
+    public void hidingTheUiKeepsTheCaches() {
+        FakeConsumer offScreen = register("off screen", PetMemoryBudget.PRIORITY_OFF_SCREEN);
+        FakeConsumer cache = register("cache", PetMemoryBudget.PRIORITY_CACHE);
+
+        mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, offScreen.getMemoryUsage());
+        assertEquals(CONSUMER_BYTES, cache.getMemoryUsage());
+
+        mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.getMemoryUsage());
+    }
+
+    @Test
+    public void criticalTrimEmptiesTheQueryCache() {
+        PetQueryCache queryCache = PetQueryCache.getInstance(mContext);
+        PetSnapshot snapshot = cacheSnapshot(queryCache, "trimmed");
+        assertTrue(queryCache.getSizeBytes() >= snapshot.getSizeBytes());
+
+        mBudget.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, queryCache.getSizeBytes());
+        // The snapshot is no longer reused, the query runs again
+        assertNotSame(snapshot, cacheSnapshot(queryCache, "trimmed"));
+    }
+
+    @Test
+    public void evictReleasesTheSnapshotsOfAScreen() {
+        PetQueryCache queryCache = PetQueryCache.getInstance(mContext);
+        PetSnapshot snapshot = cacheSnapshot(queryCache, "evicted");
+        assertSame(snapshot, cacheSnapshot(queryCache, "evicted"));
+        long before = queryCache.getSizeBytes();
+
+        assertEquals(snapshot.getSizeBytes(), queryCache.evict(snapshot));
+        assertEquals(before - snapshot.getSizeBytes(), queryCache.getSizeBytes());
+        assertEquals(0, queryCache.evict(snapshot));
+    }
+
+    /**
+     * Returns the result of a query of the test shelter, cached under the given name
+     */
+    private static PetSnapshot cacheSnapshot(PetQueryCache queryCache, final String name) {
+        return queryCache.get(SHELTER, name, new Callable<PetSnapshot>() {
+            @Override
+            public PetSnapshot call() {
+                MatrixCursor cursor = new MatrixCursor(new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME});
+                for (int i = 0; i < 100; i++) {
+                    cursor.addRow(new Object[]{i, name + i});
+                }
+                try {
+                    return PetSnapshot.fromCursor(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.example.android.pets.stress;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * Runs the stress harness on a device and shows its report, which is logged too. The harness
+ * runs on the JVM with the unit tests too (./gradlew testDebugUnitTest), this activity is only
+ * needed to measure a real device. It is not exported, so it is started from a root shell, and
+ * the run is configured with intent extras, for example:
+ * <pre>
+ * adb root
+ * adb shell am start -n com.example.android.pets/.stress.PetStressActivity \
+ *     --ei seed_pets 50000 --ei threads 16 --ei ops 2000 --eia mix 40,20,20,10,10
+ * </pre>
+ */
+public class PetStressActivity extends Activity {
+
+    public static final String EXTRA_SEED_PETS = "seed_pets";
+    public static final String EXTRA_THREADS = "threads";
+    public static final String EXTRA_OPS = "ops";
+    public static final String EXTRA_MIX = "mix";
+    public static final String EXTRA_SEED = "seed";
+    public static final String EXTRA_KEEP = "keep";
+
+    private TextView mReportView;
+
+    /**
+     * Whether a run is going on, so that a configuration change doesn't start another one
+     */
+    private static boolean sRunning;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mReportView = new TextView(this);
+        mReportView.setTypeface(Typeface.MONOSPACE);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        mReportView.setPadding(padding, padding, padding, padding);
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(mReportView);
+        setContentView(scrollView);
+
+        if (sRunning) {
+            mReportView.setText("A run is already going on, see the log");
+            return;
+        }
+
+        PetStressHarness.Config config = readConfig(getIntent());
+        mReportView.setText("Running " + config + "...");
+        sRunning = true;
+        new StressTask(this, config).execute();
+    }
+
+    private static PetStressHarness.Config readConfig(Intent intent) {
+        PetStressHarness.Config config = new PetStressHarness.Config();
+        config.seedPets = intent.getIntExtra(EXTRA_SEED_PETS, config.seedPets);
+        config.threads = intent.getIntExtra(EXTRA_THREADS, config.threads);
+        config.opsPerThread = intent.getIntExtra(EXTRA_OPS, config.opsPerThread);
+        config.seed = intent.getLongExtra(EXTRA_SEED, config.seed);
+        config.cleanUp = !intent.getBooleanExtra(EXTRA_KEEP, false);
+
+        int[] mix = intent.getIntArrayExtra(EXTRA_MIX);
+        if (mix != null) {
+            if (mix.length != config.mix.length) {
+                throw new IllegalArgumentException("The mix needs " + config.mix.length + " weights");
+            }
+            config.mix = mix;
+        }
+        return config;
+    }
+
+    private void showReport(String report) {
+        mReportView.setText(report);
+    }
+
+    private static class StressTask extends AsyncTask<Void, Void, String> {
+
+        private final Context mContext;
+        private final PetStressHarness.Config mConfig;
+
+        /**
+         * Activity that started the run. If it was recreated meanwhile, the report is only logged.
+         */
+        private final PetStressActivity mActivity;
+
+        StressTask(PetStressActivity activity, PetStressHarness.Config config) {
+            mContext = activity.getApplicationContext();
+            mConfig = config;
+            mActivity = activity;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                String report = new PetStressHarness(mContext, mConfig).run().toString();
+                Log.i(PetStressHarness.LOG_TAG, report);
+                return report;
+            } catch (InterruptedException e) {
+                return "Interrupted";
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String report) {
+            sRunning = false;
+            if (!mActivity.isFinishing() && !mActivity.isDestroyed()) {
+                mActivity.showReport(report);
+            }
+        }
+    }
+
+}
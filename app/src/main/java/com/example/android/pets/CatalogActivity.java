@@ -15,44 +15,173 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetMemoryBudget;
+import com.example.android.pets.data.PetPendingDeletes;
+import com.example.android.pets.data.PetQueryCache;
+import com.example.android.pets.data.PetSnapshot;
+import com.example.android.pets.data.PetSnapshotLoader;
+import com.example.android.pets.maintenance.PetMaintenanceJobService;
 import com.example.android.pets.model.PetCursorAdapter;
+import com.example.android.pets.model.PetSections;
+import com.example.android.pets.perf.PetFrameMonitor;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<PetSnapshot> {
 
     private PetCursorAdapter mPetCursorAdapter = new PetCursorAdapter(this, null, 0);
 
     // Defines the id of the loader for later reference
     public static final int PETS_LOADER_ID = 42;
+    public static final int SECTIONS_LOADER_ID = 43;
+
+    private static final String STATE_SORT = "sort";
+    private static final String STATE_GENDER_FILTER = "gender_filter";
+    private static final String STATE_BREED_FILTER = "breed_filter";
+
+    /**
+     * Boolean extra enabling or disabling the frame monitor in builds that are not debug
+     * builds, e.g. adb shell am start -n com.example.android.pets/.CatalogActivity --ez frame_monitor true
+     */
+    public static final String EXTRA_FRAME_MONITOR = "frame_monitor";
+
+    /**
+     * Sort order of the list, one of the SORT_* constants of {@link PetEntry}
+     */
+    private String mSort = PetEntry.SORT_NAME_ASC;
+
+    /**
+     * Gender the list is restricted to, or null to show every gender
+     */
+    private Integer mGenderFilter;
+
+    /**
+     * Breed the list is restricted to, or null to show every breed
+     */
+    private String mBreedFilter;
+
+    /**
+     * Pets and sections shown, or null until they are loaded
+     */
+    private PetSnapshot mPets;
+    private PetSnapshot mSections;
+
+    private boolean mStarted;
+
+    /**
+     * Whether the pets were released while the activity was hidden, and must be loaded
+     * again when it is shown
+     */
+    private boolean mPetsReleased;
+
+    /**
+     * List position to restore once the released pets are loaded again
+     */
+    private int mReleasedPosition = ListView.INVALID_POSITION;
+
+    /**
+     * Offers to undo the last delete while its undo window is open
+     */
+    private Snackbar mUndoBar;
+
+    /**
+     * Measures the frames of the list as it scrolls, or null if it is disabled
+     */
+    private PetFrameMonitor mFrameMonitor;
+
+    /**
+     * Bulk operation running on the selected pets, or null
+     */
+    private BulkOperationTask mBulkOperation;
+
+    /**
+     * Releases the pets, and the cursors over them, while the activity is hidden
+     */
+    private final PetMemoryBudget.Consumer mMemoryConsumer = new PetMemoryBudget.Consumer() {
+        @Override
+        public String getName() {
+            return "catalog";
+        }
+
+        @Override
+        public long getMemoryUsage() {
+            return (mPets != null ? mPets.getSizeBytes() : 0) + (mSections != null ? mSections.getSizeBytes() : 0);
+        }
+
+        @Override
+        public long trimMemory(int level) {
+            if (mStarted || mPetsReleased) {
+                // The pets are on screen, or already released
+                return 0;
+            }
+            long released = getMemoryUsage();
+            // The query cache shares the snapshots, which would outlive the loaders otherwise
+            PetQueryCache queryCache = PetQueryCache.getInstance(CatalogActivity.this);
+            if (mPets != null) {
+                queryCache.evict(mPets);
+            }
+            if (mSections != null) {
+                queryCache.evict(mSections);
+            }
+            ListView petListView = findViewById(R.id.list_view_pet);
+            mReleasedPosition = petListView.getFirstVisiblePosition();
+            // Destroying the loaders drops their snapshots, and resets the adapter
+            getSupportLoaderManager().destroyLoader(PETS_LOADER_ID);
+            getSupportLoaderManager().destroyLoader(SECTIONS_LOADER_ID);
+            mPetsReleased = true;
+            return released;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
+        if (savedInstanceState != null) {
+            mSort = savedInstanceState.getString(STATE_SORT, PetEntry.SORT_NAME_ASC);
+            if (savedInstanceState.containsKey(STATE_GENDER_FILTER)) {
+                mGenderFilter = savedInstanceState.getInt(STATE_GENDER_FILTER);
+            }
+            mBreedFilter = savedInstanceState.getString(STATE_BREED_FILTER);
+        }
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -65,6 +194,22 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
         ListView petListView = findViewById(R.id.list_view_pet);
         petListView.setAdapter(mPetCursorAdapter);
+        petListView.setFastScrollEnabled(true);
+        petListView.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                mPetCursorAdapter.onViewRecycled(view);
+            }
+        });
+
+        if (getIntent().hasExtra(EXTRA_FRAME_MONITOR)) {
+            PetFrameMonitor.setEnabled(this, getIntent().getBooleanExtra(EXTRA_FRAME_MONITOR, false));
+        }
+        mFrameMonitor = PetFrameMonitor.attach(petListView);
+
+        // Long pressing a pet starts selecting pets for the bulk actions
+        petListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        petListView.setMultiChoiceModeListener(new PetSelectionListener(petListView));
 
         // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
         View emptyView = findViewById(R.id.empty_view);
@@ -80,6 +225,74 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         });
 
         getSupportLoaderManager().initLoader(PETS_LOADER_ID, null, this);
+        if (isSortedByName()) {
+            getSupportLoaderManager().initLoader(SECTIONS_LOADER_ID, null, this);
+        }
+
+        // Keep the database compact and its statistics fresh while the device is not in use
+        PetMaintenanceJobService.schedule(this);
+
+        PetMemoryBudget.getInstance(this).register(mMemoryConsumer, PetMemoryBudget.PRIORITY_OFF_SCREEN);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mStarted = true;
+        if (mPetsReleased) {
+            mPetsReleased = false;
+            reloadPets();
+        }
+        // E.g. a pet just deleted in the editor
+        showUndoBar();
+    }
+
+    @Override
+    protected void onStop() {
+        mStarted = false;
+        if (mUndoBar != null) {
+            mUndoBar.dismiss();
+            mUndoBar = null;
+        }
+        // Leaving the list ends the undo window, unless it is only recreated
+        if (!isChangingConfigurations()) {
+            PetPendingDeletes.getInstance(this).commit();
+        }
+        if (mFrameMonitor != null) {
+            mFrameMonitor.logSummary("catalog");
+        }
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        PetMemoryBudget.getInstance(this).unregister(mMemoryConsumer);
+        if (mFrameMonitor != null) {
+            mFrameMonitor.detach();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Dump the summary of the frames of the list, e.g. with
+     * adb shell dumpsys activity com.example.android.pets/.CatalogActivity
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mFrameMonitor != null) {
+            mFrameMonitor.dump(prefix, writer);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        outState.putString(STATE_SORT, mSort);
+        if (mGenderFilter != null) {
+            outState.putInt(STATE_GENDER_FILTER, mGenderFilter);
+        }
+        outState.putString(STATE_BREED_FILTER, mBreedFilter);
+        super.onSaveInstanceState(outState);
     }
 
     @Override
@@ -90,10 +303,89 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+
+        // Reflect the current sort order and filters in the menu
+        int sortItemId;
+        switch (mSort) {
+            case PetEntry.SORT_NAME_DESC:
+                sortItemId = R.id.action_sort_name_desc;
+                break;
+            case PetEntry.SORT_WEIGHT_ASC:
+                sortItemId = R.id.action_sort_weight_asc;
+                break;
+            case PetEntry.SORT_WEIGHT_DESC:
+                sortItemId = R.id.action_sort_weight_desc;
+                break;
+            default:
+                sortItemId = R.id.action_sort_name_asc;
+                break;
+        }
+        menu.findItem(sortItemId).setChecked(true);
+
+        int genderItemId;
+        if (mGenderFilter == null) {
+            genderItemId = R.id.action_filter_gender_all;
+        } else if (mGenderFilter == PetEntry.GENDER_MALE) {
+            genderItemId = R.id.action_filter_gender_male;
+        } else if (mGenderFilter == PetEntry.GENDER_FEMALE) {
+            genderItemId = R.id.action_filter_gender_female;
+        } else {
+            genderItemId = R.id.action_filter_gender_unknown;
+        }
+        menu.findItem(genderItemId).setChecked(true);
+
+        MenuItem breedItem = menu.findItem(R.id.action_filter_breed);
+        if (mBreedFilter == null) {
+            breedItem.setTitle(R.string.filter_breed);
+        } else {
+            breedItem.setTitle(getString(R.string.filter_breed_current, mBreedFilter));
+        }
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on one of the sort orders
+            case R.id.action_sort_name_asc:
+                setSort(PetEntry.SORT_NAME_ASC);
+                return true;
+            case R.id.action_sort_name_desc:
+                setSort(PetEntry.SORT_NAME_DESC);
+                return true;
+            case R.id.action_sort_weight_asc:
+                setSort(PetEntry.SORT_WEIGHT_ASC);
+                return true;
+            case R.id.action_sort_weight_desc:
+                setSort(PetEntry.SORT_WEIGHT_DESC);
+                return true;
+            // Respond to a click on one of the gender filters
+            case R.id.action_filter_gender_all:
+                setGenderFilter(null);
+                return true;
+            case R.id.action_filter_gender_unknown:
+                setGenderFilter(PetEntry.GENDER_UNKNOWN);
+                return true;
+            case R.id.action_filter_gender_male:
+                setGenderFilter(PetEntry.GENDER_MALE);
+                return true;
+            case R.id.action_filter_gender_female:
+                setGenderFilter(PetEntry.GENDER_FEMALE);
+                return true;
+            // Respond to a click on the "Breed" filter menu option
+            case R.id.action_filter_breed:
+                showBreedFilterDialog();
+                return true;
+            // Respond to a click on the "Clear filters" menu option
+            case R.id.action_clear_filters:
+                mGenderFilter = null;
+                mBreedFilter = null;
+                reloadPets();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertDummyPet();
@@ -106,6 +398,301 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return super.onOptionsItemSelected(item);
     }
 
+    private void setSort(String sort) {
+        mSort = sort;
+        reloadPets();
+    }
+
+    private void setGenderFilter(Integer gender) {
+        mGenderFilter = gender;
+        reloadPets();
+    }
+
+    /**
+     * Ask the user which breed the list should be restricted to. An empty breed removes the filter.
+     */
+    private void showBreedFilterDialog() {
+        showTextInputDialog(R.string.filter_breed_dialog_title, R.string.hint_pet_breed,
+                InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_WORDS, mBreedFilter, R.string.apply_filter,
+                new OnTextEnteredListener() {
+                    @Override
+                    public void onTextEntered(String text) {
+                        mBreedFilter = TextUtils.isEmpty(text) ? null : text;
+                        reloadPets();
+                    }
+                });
+    }
+
+    /**
+     * Callback of {@link #showTextInputDialog}
+     */
+    private interface OnTextEnteredListener {
+        void onTextEntered(String text);
+    }
+
+    /**
+     * Show a dialog with a single text field, and pass the trimmed text to the listener
+     * when the user confirms it.
+     */
+    private void showTextInputDialog(int titleResId, int hintResId, int inputType, String initialText,
+                                     int positiveButtonResId, final OnTextEnteredListener listener) {
+        final EditText editText = new EditText(this);
+        editText.setHint(hintResId);
+        editText.setInputType(inputType);
+        editText.setSingleLine();
+        if (initialText != null) {
+            editText.setText(initialText);
+            editText.setSelection(initialText.length());
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(titleResId);
+        builder.setView(editText);
+        builder.setPositiveButton(positiveButtonResId, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                listener.onTextEntered(editText.getText().toString().trim());
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+
+        builder.show();
+    }
+
+    /**
+     * Query the pets again with the current sort order and filters
+     */
+    private void reloadPets() {
+        getSupportLoaderManager().restartLoader(PETS_LOADER_ID, null, this);
+
+        // Alphabetical sections only make sense when the list is sorted by name
+        if (isSortedByName()) {
+            getSupportLoaderManager().restartLoader(SECTIONS_LOADER_ID, null, this);
+        } else {
+            getSupportLoaderManager().destroyLoader(SECTIONS_LOADER_ID);
+            mPetCursorAdapter.swapSections(null);
+        }
+    }
+
+    private boolean isSortedByName() {
+        return PetEntry.SORT_NAME_ASC.equals(mSort) || PetEntry.SORT_NAME_DESC.equals(mSort);
+    }
+
+    /**
+     * Handles the contextual app bar shown while pets are selected in the list.
+     */
+    private class PetSelectionListener implements AbsListView.MultiChoiceModeListener {
+
+        private final ListView mListView;
+
+        PetSelectionListener(ListView listView) {
+            mListView = listView;
+        }
+
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+            mode.setTitle(getString(R.string.selection_count, mListView.getCheckedItemCount()));
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            // The adapter has stable ids, so the checked ids are the ids of the selected pets
+            long[] ids = mListView.getCheckedItemIds();
+            switch (item.getItemId()) {
+                case R.id.action_set_breed:
+                    showSetBreedDialog(mode, ids);
+                    return true;
+                case R.id.action_set_gender:
+                    showSetGenderDialog(mode, ids);
+                    return true;
+                case R.id.action_set_weight:
+                    showSetWeightDialog(mode, ids);
+                    return true;
+                case R.id.action_delete_selected:
+                    showDeleteSelectedConfirmationDialog(mode, ids);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+        }
+    }
+
+    private void showSetBreedDialog(final ActionMode mode, final long[] ids) {
+        showTextInputDialog(R.string.action_set_breed, R.string.hint_pet_breed,
+                InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_WORDS, null, R.string.apply,
+                new OnTextEnteredListener() {
+                    @Override
+                    public void onTextEntered(String text) {
+                        ContentValues values = new ContentValues();
+                        values.put(PetEntry.COLUMN_PET_BREED, text);
+                        updatePets(mode, ids, values);
+                    }
+                });
+    }
+
+    private void showSetGenderDialog(final ActionMode mode, final long[] ids) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_set_gender);
+        // The gender options are listed in the order of the GENDER_* constants
+        builder.setItems(R.array.array_gender_options, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_GENDER, which);
+                updatePets(mode, ids, values);
+            }
+        });
+        builder.show();
+    }
+
+    private void showSetWeightDialog(final ActionMode mode, final long[] ids) {
+        showTextInputDialog(R.string.action_set_weight, R.string.hint_pet_weight,
+                InputType.TYPE_CLASS_NUMBER, null, R.string.apply,
+                new OnTextEnteredListener() {
+                    @Override
+                    public void onTextEntered(String text) {
+                        int weight;
+                        try {
+                            weight = Integer.parseInt(text);
+                        } catch (NumberFormatException e) {
+                            // Unlike the editor, do not overwrite the weight of all the selected pets with 0
+                            Toast.makeText(CatalogActivity.this, R.string.catalog_bulk_failed, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        ContentValues values = new ContentValues();
+                        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+                        updatePets(mode, ids, values);
+                    }
+                });
+    }
+
+    private void showDeleteSelectedConfirmationDialog(final ActionMode mode, final long[] ids) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.delete_selected_dialog_msg, ids.length));
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // Deferred, so that the pets can be restored from the undo bar
+                Bundle extras = PetPendingDeletes.getInstance(CatalogActivity.this)
+                        .prepareBulkDelete(PetContract.DEFAULT_SHELTER, ids);
+                runBulkOperation(mode, PetEntry.METHOD_BULK_DELETE, extras, 0);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+
+        builder.show();
+    }
+
+    /**
+     * Apply the given values to all the selected pets at once.
+     */
+    private void updatePets(ActionMode mode, long[] ids, ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(PetEntry.EXTRA_IDS, ids);
+        extras.putParcelable(PetEntry.EXTRA_VALUES, values);
+        runBulkOperation(mode, PetEntry.METHOD_BULK_UPDATE, extras, R.string.catalog_update_pets_successful);
+    }
+
+    /**
+     * Run one of the bulk methods of the provider, which changes all the pets in a single
+     * transaction, in the background, then leave the selection mode.
+     *
+     * @param successMessageResId message shown with the number of pets changed, unused by the
+     *                            deletes, which show the undo bar instead
+     */
+    private void runBulkOperation(ActionMode mode, String method, Bundle extras, int successMessageResId) {
+        if (mBulkOperation != null) {
+            // The selection is left once the running operation completes
+            return;
+        }
+        mBulkOperation = new BulkOperationTask(this, mode, method, extras, successMessageResId);
+        mBulkOperation.execute();
+    }
+
+    private void onBulkOperationDone(ActionMode mode, String method, Bundle result, int successMessageResId) {
+        mBulkOperation = null;
+        if (result != null && PetEntry.METHOD_BULK_DELETE.equals(method)) {
+            PetPendingDeletes.getInstance(this).onBulkDeleted(PetContract.DEFAULT_SHELTER,
+                    result.getInt(PetEntry.EXTRA_ROW_COUNT));
+            showUndoBar();
+            mode.finish();
+            return;
+        }
+        String msg = result != null
+                ? getString(successMessageResId, result.getInt(PetEntry.EXTRA_ROW_COUNT))
+                : getString(R.string.catalog_bulk_failed);
+        Toast.makeText(this, msg, Toast.LENGTH_SHORT).show();
+        mode.finish();
+    }
+
+    /**
+     * Runs one of the bulk methods of the provider off the main thread. A large selection
+     * fills a temporary table and rewrites many rows, far too long for the main thread.
+     */
+    private static class BulkOperationTask extends AsyncTask<Void, Void, Bundle> {
+
+        private final ContentResolver mResolver;
+        private final ActionMode mMode;
+        private final String mMethod;
+        private final Bundle mExtras;
+        private final int mSuccessMessageResId;
+
+        /**
+         * Catalog showing the selection. If it was destroyed meanwhile, the result is dropped.
+         */
+        private final CatalogActivity mActivity;
+
+        BulkOperationTask(CatalogActivity activity, ActionMode mode, String method, Bundle extras,
+                          int successMessageResId) {
+            mResolver = activity.getApplicationContext().getContentResolver();
+            mMode = mode;
+            mMethod = method;
+            mExtras = extras;
+            mSuccessMessageResId = successMessageResId;
+            mActivity = activity;
+        }
+
+        @Override
+        protected Bundle doInBackground(Void... params) {
+            try {
+                return mResolver.call(PetEntry.CONTENT_URI, mMethod, null, mExtras);
+            } catch (RuntimeException e) {
+                Log.e(CatalogActivity.class.getSimpleName(), "Bulk operation " + mMethod + " failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bundle result) {
+            if (!mActivity.isFinishing() && !mActivity.isDestroyed()) {
+                mActivity.onBulkOperationDone(mMode, mMethod, result, mSuccessMessageResId);
+            }
+        }
+    }
+
     /**
      * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
      */
@@ -126,30 +713,85 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
      * Helper method to delete all pets in the database.
      */
     private void deleteAllPets() {
-        int rowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        int rowsDeleted = PetPendingDeletes.getInstance(this).delete(PetEntry.CONTENT_URI, null, null);
         Log.v(CatalogActivity.class.getSimpleName(), rowsDeleted + " rows deleted from pet database");
+        showUndoBar();
+    }
+
+    /**
+     * Show the undo action of the pending delete, if its window is still open.
+     */
+    private void showUndoBar() {
+        final PetPendingDeletes pendingDeletes = PetPendingDeletes.getInstance(this);
+        int count = pendingDeletes.getPendingCount();
+        long remainingMillis = pendingDeletes.getRemainingMillis();
+        if (count == 0 || remainingMillis == 0) {
+            return;
+        }
+
+        String msg = getResources().getQuantityString(R.plurals.catalog_pets_deleted, count, count);
+        mUndoBar = Snackbar.make(findViewById(R.id.list_view_pet), msg, (int) remainingMillis);
+        mUndoBar.setAction(R.string.undo, new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (!pendingDeletes.undo()) {
+                    Toast.makeText(CatalogActivity.this, R.string.catalog_undo_failed, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        mUndoBar.show();
     }
 
     @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int id, @Nullable Bundle args) {
+    public Loader<PetSnapshot> onCreateLoader(int id, @Nullable Bundle args) {
+
+        Uri uri = PetEntry.buildCatalogUri(mSort, mGenderFilter, mBreedFilter);
+        if (id == SECTIONS_LOADER_ID) {
+            return PetSnapshotLoader.forQuery(this, PetEntry.buildSectionsUri(uri), null, null, null, null);
+        }
 
-        String[] projection = new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED};
-        return new CursorLoader(this, PetEntry.CONTENT_URI, projection, null, null, null);
+        String[] projection = new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_PHOTO};
+        return PetSnapshotLoader.forQuery(this, uri, projection, null, null, null);
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
+    public void onLoadFinished(@NonNull Loader<PetSnapshot> loader, PetSnapshot data) {
+        if (loader.getId() == SECTIONS_LOADER_ID) {
+            Cursor sections = data.newCursor();
+            mPetCursorAdapter.swapSections(PetSections.fromCursor(sections));
+            sections.close();
+            mSections = data;
+            return;
+        }
+
+        // Change to a cursor over the new snapshot, which also closes the cursor
+        // over the previous one
+        Cursor cursor = data.newCursor();
+        mPetCursorAdapter.changeCursor(mFrameMonitor != null ? PetFrameMonitor.wrapCursor(cursor) : cursor);
+        mPets = data;
+
+        if (mReleasedPosition != ListView.INVALID_POSITION) {
+            ListView petListView = findViewById(R.id.list_view_pet);
+            petListView.setSelection(mReleasedPosition);
+            mReleasedPosition = ListView.INVALID_POSITION;
+        }
 
-        // Swap the new cursor in.  (The framework will take care of closing the
-        // old cursor once we return.)
-        mPetCursorAdapter.swapCursor(data);
+        PetMemoryBudget.getInstance(this).checkBudget();
     }
 
     @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        // Clear the Cursor we were using with another call to the swapCursor()
-        mPetCursorAdapter.swapCursor(null);
+    public void onLoaderReset(@NonNull Loader<PetSnapshot> loader) {
+        if (loader.getId() == SECTIONS_LOADER_ID) {
+            mPetCursorAdapter.swapSections(null);
+            mSections = null;
+            return;
+        }
+
+        // Clear the Cursor we were using with another call to the changeCursor()
+        mPetCursorAdapter.changeCursor(null);
+        mPets = null;
     }
 
 }
@@ -15,20 +15,25 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.NavUtils;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -36,15 +41,25 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetPendingDeletes;
+import com.example.android.pets.data.PetSnapshot;
+import com.example.android.pets.data.PetSnapshotLoader;
+import com.example.android.pets.photo.PetPhotoLoader;
+
+import java.io.FileNotFoundException;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
-public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<PetSnapshot> {
+
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
 
     /**
      * EditText field to enter the pet's name
@@ -66,6 +81,24 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private Spinner mGenderSpinner;
 
+    /**
+     * Photo of the pet, tapped to choose a new one
+     */
+    private ImageView mPhotoView;
+
+    /**
+     * Photo chosen by the user, stored with the pet when it is saved, or null if the photo
+     * didn't change
+     */
+    private Uri mPickedPhotoUri;
+
+    private static final String STATE_PICKED_PHOTO = "picked_photo";
+
+    /**
+     * Request code of the photo picker
+     */
+    private static final int PICK_PHOTO_REQUEST = 1;
+
     /**
      * Gender of the pet. The possible values are:
      * {@link PetEntry#GENDER_UNKNOWN} for unknown gender,
@@ -84,6 +117,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private Uri mCurrentPetUri;
 
+    /**
+     * Lookup of the pets the new pet may duplicate, running after the user asked to save it,
+     * or null
+     */
+    private DuplicateCheckTask mDuplicateCheck;
+
     private static final String STATE_PET_HAS_CHANGED = "pet_has_changed";
     private boolean mPetHasChanged;
 
@@ -106,6 +145,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             mPetHasChanged = false;
         } else {
             mPetHasChanged = savedInstanceState.getBoolean(STATE_PET_HAS_CHANGED);
+            mPickedPhotoUri = savedInstanceState.getParcelable(STATE_PICKED_PHOTO);
         }
 
         // If the user opens the activity by clicking on a pet item,
@@ -123,21 +163,83 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText = findViewById(R.id.edit_pet_breed);
         mWeightEditText = findViewById(R.id.edit_pet_weight);
         mGenderSpinner = findViewById(R.id.spinner_gender);
+        mPhotoView = findViewById(R.id.edit_pet_photo);
 
         mNameEditText.setOnTouchListener(mOnTouchListener);
         mBreedEditText.setOnTouchListener(mOnTouchListener);
         mWeightEditText.setOnTouchListener(mOnTouchListener);
         mGenderSpinner.setOnTouchListener(mOnTouchListener);
 
+        mPhotoView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
+        if (mPickedPhotoUri != null) {
+            showPickedPhoto();
+        }
+
         setupSpinner();
     }
 
     @Override
     protected void onSaveInstanceState(Bundle savedInstanceState) {
         savedInstanceState.putBoolean(STATE_PET_HAS_CHANGED, mPetHasChanged);
+        savedInstanceState.putParcelable(STATE_PICKED_PHOTO, mPickedPhotoUri);
         super.onSaveInstanceState(savedInstanceState);
     }
 
+    /**
+     * Let the user choose a photo of the pet with any app that provides images
+     */
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            startActivityForResult(intent, PICK_PHOTO_REQUEST);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == PICK_PHOTO_REQUEST) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                mPickedPhotoUri = data.getData();
+                mPetHasChanged = true;
+                showPickedPhoto();
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    private void showPickedPhoto() {
+        PetPhotoLoader.getInstance(this).loadImage(mPhotoView, mPickedPhotoUri,
+                getResources().getDimensionPixelSize(R.dimen.editor_photo_size));
+    }
+
+    /**
+     * Store the photo picked by the user as the photo of the given pet, in the background
+     */
+    private void storePickedPhoto(Uri petUri) {
+        if (mPickedPhotoUri == null) {
+            return;
+        }
+        try {
+            // Opened now, as the permission to read the picked photo ends with this activity
+            ParcelFileDescriptor photo = getContentResolver().openFileDescriptor(mPickedPhotoUri, "r");
+            if (photo != null) {
+                PetPhotoLoader.getInstance(this).storePetPhoto(PetContract.getShelter(petUri),
+                        ContentUris.parseId(petUri), photo);
+            }
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.e(LOG_TAG, "Cannot open " + mPickedPhotoUri, e);
+            Toast.makeText(this, R.string.editor_photo_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the gender of the pet.
      */
@@ -177,6 +279,132 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         });
     }
 
+    /**
+     * Save the pet and leave the editor. A new pet that may already be registered is only
+     * saved once the user confirms it, after the registered pets are looked up in the background.
+     */
+    private void saveNewPetUnlessDuplicate() {
+        String name = mNameEditText.getText().toString().trim();
+        if (mCurrentPetUri != null || TextUtils.isEmpty(name)) {
+            savePet();
+            finish();
+            return;
+        }
+        if (mDuplicateCheck != null) {
+            // Still looking up the registered pets
+            return;
+        }
+
+        String breed = mBreedEditText.getText().toString().trim();
+        mDuplicateCheck = new DuplicateCheckTask(this, name, breed, mGender);
+        mDuplicateCheck.execute();
+    }
+
+    private void onDuplicatesFound(long[] duplicateIds) {
+        mDuplicateCheck = null;
+        if (duplicateIds.length == 0) {
+            savePet();
+            finish();
+        } else {
+            showDuplicateDialog(duplicateIds);
+        }
+    }
+
+    /**
+     * Returns the ids of the registered pets with the same name, breed and gender as the new
+     * pet, ignoring case and accents, found through the provider's match key index.
+     */
+    private static long[] findDuplicates(ContentResolver resolver, String name, String breed, int gender) {
+        Cursor cursor = resolver.query(PetEntry.buildDuplicatesUri(name, breed, gender),
+                new String[]{PetEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Looks up the registered pets a new pet may duplicate, off the main thread
+     */
+    private static class DuplicateCheckTask extends AsyncTask<Void, Void, long[]> {
+
+        private final ContentResolver mResolver;
+        private final String mName;
+        private final String mBreed;
+        private final int mGender;
+
+        /**
+         * Editor saving the pet. If it was destroyed meanwhile, the result is dropped.
+         */
+        private final EditorActivity mActivity;
+
+        DuplicateCheckTask(EditorActivity activity, String name, String breed, int gender) {
+            mResolver = activity.getApplicationContext().getContentResolver();
+            mName = name;
+            mBreed = breed;
+            mGender = gender;
+            mActivity = activity;
+        }
+
+        @Override
+        protected long[] doInBackground(Void... params) {
+            try {
+                return findDuplicates(mResolver, mName, mBreed, mGender);
+            } catch (RuntimeException e) {
+                // Not worth blocking the intake for
+                Log.e(LOG_TAG, "Cannot look up the pets duplicating " + mName, e);
+                return new long[0];
+            }
+        }
+
+        @Override
+        protected void onPostExecute(long[] duplicateIds) {
+            if (!mActivity.isFinishing() && !mActivity.isDestroyed()) {
+                mActivity.onDuplicatesFound(duplicateIds);
+            }
+        }
+    }
+
+    /**
+     * Ask whether to register the new pet although it may already be registered, or to open
+     * the registered one instead.
+     */
+    private void showDuplicateDialog(final long[] duplicateIds) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getResources().getQuantityString(R.plurals.duplicate_dialog_msg,
+                duplicateIds.length, duplicateIds.length));
+        builder.setPositiveButton(R.string.save_anyway, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                savePet();
+                finish();
+            }
+        });
+        builder.setNeutralButton(R.string.open_registered_pet, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                Intent intent = new Intent(EditorActivity.this, EditorActivity.class);
+                intent.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, duplicateIds[0]));
+                startActivity(intent);
+                finish();
+            }
+        });
+        builder.setNegativeButton(R.string.keep_editing, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        builder.show();
+    }
+
     /**
      * Get user input from editor and save pet on db
      */
@@ -204,6 +432,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             if (mCurrentPetUri != null) {
                 int rowsUpdated = getContentResolver().update(mCurrentPetUri, values, null, null);
                 if (rowsUpdated > 0) {
+                    storePickedPhoto(mCurrentPetUri);
                     msg = getString(R.string.editor_update_pet_successful);
                 } else {
                     msg = getString(R.string.editor_update_pet_failed);
@@ -211,6 +440,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             } else {
                 Uri resultUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
                 if (resultUri != null) {
+                    storePickedPhoto(resultUri);
                     msg = getString(R.string.editor_insert_pet_successful);
                 } else {
                     msg = getString(R.string.editor_insert_pet_failed);
@@ -247,9 +477,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                savePet();
-                //exit activity
-                finish();
+                // Saves and exits the activity, unless the user reconsiders a duplicate
+                saveNewPetUnlessDuplicate();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -360,16 +589,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         }
 
         try {
-            String msg;
-
-            int rowsDelete = getContentResolver().delete(mCurrentPetUri, null, null);
-            if (rowsDelete > 0) {
-                msg = getString(R.string.editor_delete_pet_successful);
-            } else {
-                msg = getString(R.string.editor_delete_pet_failed);
+            // Can be undone from the catalog for a few seconds
+            int rowsDelete = PetPendingDeletes.getInstance(this).delete(mCurrentPetUri, null, null);
+            if (rowsDelete == 0) {
+                Toast.makeText(this, R.string.editor_delete_pet_failed, Toast.LENGTH_SHORT).show();
             }
-
-            Toast.makeText(this, msg, Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -379,31 +603,44 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int id, @Nullable Bundle args) {
-        return new CursorLoader(this, mCurrentPetUri, null, null, null, null);
+    public Loader<PetSnapshot> onCreateLoader(int id, @Nullable Bundle args) {
+        // Only reloaded when this pet changes
+        return PetSnapshotLoader.forPet(this, ContentUris.parseId(mCurrentPetUri), null);
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
-        if (data == null || data.getCount() != 1) {
+    public void onLoadFinished(@NonNull Loader<PetSnapshot> loader, PetSnapshot snapshot) {
+        if (snapshot == null || snapshot.getCount() != 1) {
             return;
         }
 
+        Cursor data = snapshot.newCursor();
         if (data.moveToFirst()) {
             mNameEditText.setText(data.getString(data.getColumnIndex(PetEntry.COLUMN_PET_NAME)));
             mBreedEditText.setText(data.getString(data.getColumnIndex(PetEntry.COLUMN_PET_BREED)));
             mWeightEditText.setText(String.valueOf(data.getInt(data.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT))));
             mGenderSpinner.setSelection(data.getInt(data.getColumnIndex(PetEntry.COLUMN_PET_GENDER)));
+
+            // A photo picked but not saved yet stays on screen
+            if (mPickedPhotoUri == null) {
+                int photoIndex = data.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
+                PetPhotoLoader.getInstance(this).loadPetPhoto(mPhotoView, PetContract.getShelter(mCurrentPetUri),
+                        ContentUris.parseId(mCurrentPetUri), data.isNull(photoIndex) ? null : data.getLong(photoIndex),
+                        getResources().getDimensionPixelSize(R.dimen.editor_photo_size));
+            }
         }
+        data.close();
     }
 
     @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
+    public void onLoaderReset(@NonNull Loader<PetSnapshot> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
         mNameEditText.setText("");
         mBreedEditText.setText("");
         mWeightEditText.setText("");
         mGenderSpinner.setSelection(PetEntry.GENDER_UNKNOWN);
+        PetPhotoLoader.getInstance(this).cancel(mPhotoView);
+        mPhotoView.setImageDrawable(null);
     }
 
 }
@@ -0,0 +1,300 @@
+package com.example.android.pets.backup;
+
+import android.app.backup.BackupAgent;
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetBackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Backs up the pets of each shelter with the key/value backup service, as a base holding all
+ * the pets followed by deltas holding the changes since the previous backup (see
+ * {@link PetBackup}). Each backup only sends the delta of the shelters that changed; a new base
+ * replaces the deltas once there are {@link #MAX_DELTAS} of them, or once they are larger than
+ * the base.
+ * <p>
+ * The keys are "&lt;shelter&gt;/base" and "&lt;shelter&gt;/delta_0001", "&lt;shelter&gt;/delta_0002"...
+ * The state of the last backup records, for each shelter, the sequence number it went up to and
+ * the number and size of its deltas.
+ */
+public class PetBackupAgent extends BackupAgent {
+
+    private static final String LOG_TAG = PetBackupAgent.class.getSimpleName();
+
+    /**
+     * Deltas after which the next backup of a shelter is a new base
+     */
+    private static final int MAX_DELTAS = 8;
+
+    private static final String KEY_BASE = "base";
+    private static final String KEY_DELTA_PREFIX = "delta_";
+
+    /**
+     * Version of the state file, which is ignored, making all the next backups bases, when it
+     * does not match
+     */
+    private static final int STATE_VERSION = 1;
+
+    /**
+     * What the backup service holds for a shelter
+     */
+    private static final class ShelterState {
+
+        /**
+         * Sequence number the last backup went up to, 0 to make the next backup a base
+         */
+        private long mToSeq;
+
+        private int mDeltaCount;
+        private long mBaseBytes;
+        private long mDeltaBytes;
+    }
+
+    @Override
+    public void onBackup(ParcelFileDescriptor oldState, BackupDataOutput data, ParcelFileDescriptor newState)
+            throws IOException {
+        Map<String, ShelterState> states = readState(oldState);
+        Map<String, ShelterState> newStates = new HashMap<>();
+
+        List<String> shelters = PetBackup.listShelters(this);
+        for (String shelter : shelters) {
+            ShelterState state = states.remove(shelter);
+            if (state == null) {
+                state = new ShelterState();
+            }
+            backUpShelter(shelter, state, data);
+            newStates.put(shelter, state);
+        }
+
+        // Shelters removed since the last backup
+        for (Map.Entry<String, ShelterState> entry : states.entrySet()) {
+            data.writeEntityHeader(buildKey(entry.getKey(), KEY_BASE), -1);
+            deleteDeltas(entry.getKey(), entry.getValue().mDeltaCount, data);
+        }
+
+        writeState(newStates, newState);
+    }
+
+    /**
+     * Send the base or the next delta of the given shelter, if it changed, and update its state.
+     */
+    private void backUpShelter(String shelter, ShelterState state, BackupDataOutput data) throws IOException {
+        boolean base = state.mToSeq <= 0 || state.mDeltaCount >= MAX_DELTAS || state.mDeltaBytes > state.mBaseBytes;
+
+        // Written to a file first, as the backup service needs the size of each entity up front
+        File file = File.createTempFile("backup", null, getCacheDir());
+        try {
+            long toSeq;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                toSeq = PetBackup.export(this, shelter, base ? 0 : state.mToSeq, out);
+            } finally {
+                out.close();
+            }
+            if (!base && toSeq == state.mToSeq) {
+                return;
+            }
+
+            int size = (int) file.length();
+            if (base) {
+                writeEntity(data, buildKey(shelter, KEY_BASE), file, size);
+                deleteDeltas(shelter, state.mDeltaCount, data);
+                state.mDeltaCount = 0;
+                state.mBaseBytes = size;
+                state.mDeltaBytes = 0;
+            } else {
+                state.mDeltaCount++;
+                writeEntity(data, buildDeltaKey(shelter, state.mDeltaCount), file, size);
+                state.mDeltaBytes += size;
+            }
+            state.mToSeq = toSeq;
+            Log.i(LOG_TAG, "Backed up " + (base ? "all the pets" : "the changes") + " of shelter " + shelter
+                    + " in " + size + " bytes");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void writeEntity(BackupDataOutput data, String key, File file, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        data.writeEntityHeader(key, size);
+        data.writeEntityData(bytes, size);
+    }
+
+    private static void deleteDeltas(String shelter, int deltaCount, BackupDataOutput data) throws IOException {
+        for (int i = 1; i <= deltaCount; i++) {
+            data.writeEntityHeader(buildDeltaKey(shelter, i), -1);
+        }
+    }
+
+    /**
+     * Restore the base of each shelter, then its deltas in order. The entities are not received
+     * in any particular order, so they are all saved to files first. A delta that does not
+     * follow the previous one, e.g. left over from an older series, ends the restore of its
+     * shelter.
+     */
+    @Override
+    public void onRestore(BackupDataInput data, int appVersionCode, ParcelFileDescriptor newState)
+            throws IOException {
+        File dir = new File(getCacheDir(), "restore");
+        dir.mkdirs();
+        Map<String, File> bases = new HashMap<>();
+        Map<String, TreeMap<String, File>> deltas = new HashMap<>();
+        Map<String, ShelterState> newStates = new HashMap<>();
+        try {
+            byte[] buffer = new byte[8192];
+            while (data.readNextHeader()) {
+                String key = data.getKey();
+                int separator = key.indexOf('/');
+                if (separator < 0) {
+                    data.skipEntityData();
+                    continue;
+                }
+                String shelter = key.substring(0, separator);
+                String name = key.substring(separator + 1);
+
+                File file = new File(dir, shelter + "_" + name);
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    int remaining = data.getDataSize();
+                    while (remaining > 0) {
+                        int count = data.readEntityData(buffer, 0, Math.min(buffer.length, remaining));
+                        out.write(buffer, 0, count);
+                        remaining -= count;
+                    }
+                } finally {
+                    out.close();
+                }
+
+                if (KEY_BASE.equals(name)) {
+                    bases.put(shelter, file);
+                } else if (name.startsWith(KEY_DELTA_PREFIX)) {
+                    TreeMap<String, File> shelterDeltas = deltas.get(shelter);
+                    if (shelterDeltas == null) {
+                        shelterDeltas = new TreeMap<>();
+                        deltas.put(shelter, shelterDeltas);
+                    }
+                    shelterDeltas.put(name, file);
+                }
+            }
+
+            for (Map.Entry<String, File> entry : bases.entrySet()) {
+                String shelter = entry.getKey();
+                TreeMap<String, File> shelterDeltas = deltas.get(shelter);
+                restoreShelter(shelter, entry.getValue(), shelterDeltas);
+
+                // The next backup is a new base, which also deletes the restored deltas
+                ShelterState state = new ShelterState();
+                state.mDeltaCount = shelterDeltas != null ? shelterDeltas.size() : 0;
+                newStates.put(shelter, state);
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+        writeState(newStates, newState);
+    }
+
+    private void restoreShelter(String shelter, File base, TreeMap<String, File> deltas) {
+        try {
+            long seq = restoreFile(shelter, base, -1);
+            if (deltas != null) {
+                for (File delta : deltas.values()) {
+                    seq = restoreFile(shelter, delta, seq);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Restore of shelter " + shelter + " stopped", e);
+        }
+    }
+
+    private long restoreFile(String shelter, File file, long afterSeq) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return PetBackup.restore(this, shelter, in, afterSeq);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String buildKey(String shelter, String name) {
+        return shelter + "/" + name;
+    }
+
+    private static String buildDeltaKey(String shelter, int delta) {
+        return buildKey(shelter, KEY_DELTA_PREFIX + String.format(Locale.US, "%04d", delta));
+    }
+
+    private static Map<String, ShelterState> readState(ParcelFileDescriptor oldState) {
+        Map<String, ShelterState> states = new HashMap<>();
+        if (oldState == null) {
+            return states;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(oldState.getFileDescriptor()));
+        try {
+            if (in.readInt() != STATE_VERSION) {
+                return states;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String shelter = in.readUTF();
+                ShelterState state = new ShelterState();
+                state.mToSeq = in.readLong();
+                state.mDeltaCount = in.readInt();
+                state.mBaseBytes = in.readLong();
+                state.mDeltaBytes = in.readLong();
+                states.put(shelter, state);
+            }
+        } catch (IOException e) {
+            // No state, or a truncated one: all the next backups are bases
+            states.clear();
+        }
+        return states;
+    }
+
+    private static void writeState(Map<String, ShelterState> states, ParcelFileDescriptor newState) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(newState.getFileDescriptor())));
+        out.writeInt(STATE_VERSION);
+        out.writeInt(states.size());
+        for (Map.Entry<String, ShelterState> entry : states.entrySet()) {
+            ShelterState state = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(state.mToSeq);
+            out.writeInt(state.mDeltaCount);
+            out.writeLong(state.mBaseBytes);
+            out.writeLong(state.mDeltaBytes);
+        }
+        out.flush();
+    }
+
+}
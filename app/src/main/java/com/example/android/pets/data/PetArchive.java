@@ -0,0 +1,75 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Moves the pets that stopped being available more than {@link PetEntry#ARCHIVE_DELAY_MILLIS}
+ * ago out of the pets table, into the {@link PetDbHelper#ARCHIVE_TABLE}, so that the pets
+ * table, its indexes and the catalog queries only deal with the pets people browse.
+ * <p>
+ * The pets are moved in batches of {@link #BATCH_PETS}, each in its own transaction, so that
+ * the writers of the pets table never wait long. The pets whose deletion is pending are left
+ * alone, their deletion may still be undone.
+ */
+final class PetArchive {
+
+    static final int BATCH_PETS = 500;
+
+    /**
+     * Columns copied from the pets table to the archive
+     */
+    private static final String COLUMNS = PetEntry._ID + "," + PetEntry.COLUMN_PET_NAME + ","
+            + PetDbHelper.COLUMN_BREED_ID + "," + PetEntry.COLUMN_PET_GENDER + "," + PetEntry.COLUMN_PET_WEIGHT + ","
+            + PetEntry.COLUMN_PET_PHOTO + "," + PetEntry.COLUMN_PET_STATUS + "," + PetDbHelper.COLUMN_STATUS_CHANGED;
+
+    private PetArchive() {
+    }
+
+    /**
+     * Move the next batch of pets to archive. Returns the ids of the pets moved, fewer than
+     * {@link #BATCH_PETS} once no pet is left to archive.
+     */
+    static long[] moveBatch(SQLiteDatabase db, long nowMillis) {
+        long cutoff = nowMillis - PetEntry.ARCHIVE_DELAY_MILLIS;
+        db.beginTransaction();
+        try {
+            // Answered by the status index
+            Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                    PetEntry.COLUMN_PET_STATUS + " > ? AND " + PetDbHelper.COLUMN_STATUS_CHANGED + " < ? AND "
+                            + PetEntry._ID + " NOT IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PENDING_DELETES_TABLE + ")",
+                    new String[]{String.valueOf(PetEntry.STATUS_AVAILABLE), String.valueOf(cutoff)},
+                    null, null, null, String.valueOf(BATCH_PETS));
+            long[] ids;
+            try {
+                ids = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (ids.length > 0) {
+                StringBuilder idSelection = new StringBuilder(PetEntry._ID + " IN (");
+                for (int i = 0; i < ids.length; i++) {
+                    idSelection.append(i > 0 ? "," : "").append(ids[i]);
+                }
+                idSelection.append(")");
+
+                // Copied first, so that the deletes leave no backup tombstone
+                db.execSQL("INSERT INTO " + PetDbHelper.ARCHIVE_TABLE + " (" + COLUMNS + "," + PetEntry.COLUMN_ARCHIVED + ")"
+                        + " SELECT " + COLUMNS + ",? FROM " + PetEntry.TABLE_NAME + " WHERE " + idSelection,
+                        new Object[]{nowMillis});
+                db.delete(PetEntry.TABLE_NAME, idSelection.toString(), null);
+            }
+            db.setTransactionSuccessful();
+            return ids;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+}
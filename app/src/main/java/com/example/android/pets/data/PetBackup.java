@@ -0,0 +1,392 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetShardManager.Shard;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Backups of the pets of a shelter, in the compact format of {@link PetBackupFormat}.
+ * <p>
+ * A full backup holds every pet, archived or not. An incremental backup only holds the pets
+ * changed or moved to the archive, and the ids of the pets deleted, since the sequence number up
+ * to which a previous backup went (see {@link PetDbHelper#COLUMN_CHANGE_SEQ}). The photos are
+ * not part of the backups.
+ * <p>
+ * A restore is streamed: the records are first staged in a temporary table, in chunked
+ * transactions, and only applied to the pets once the whole backup has been read and its
+ * checksum verified, again in chunked transactions, so that other writers are never blocked
+ * for long. Restoring a full backup deletes the pets it does not hold, restoring an
+ * incremental one applies its changes on top of the current pets. Pets identical to their
+ * backup are not written at all.
+ */
+public final class PetBackup {
+
+    private static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /**
+     * Records staged, and pets applied, per transaction
+     */
+    private static final int CHUNK_ROWS = 500;
+
+    /**
+     * Temporary table holding the records of the backup being restored. Like any temporary
+     * table it only exists on the connection of the writes, so it is only used inside
+     * transactions.
+     */
+    private static final String STAGING_TABLE = "temp.backup_staging";
+
+    /**
+     * Column of the staging table telling whether a record is a pet, an archived pet or a
+     * deleted pet, with the {@link PetDbHelper#ARCHIVE_TABLE}'s archived time column
+     */
+    private static final String COLUMN_KIND = "kind";
+    private static final int KIND_PET = 0;
+    private static final int KIND_ARCHIVED = 1;
+    private static final int KIND_DELETED = 2;
+
+    /**
+     * Columns of the pets in the backups
+     */
+    private static final String[] PET_COLUMNS = {PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_STATUS,
+            PetDbHelper.COLUMN_STATUS_CHANGED};
+
+    /**
+     * Serializes the restores, which share the staging table
+     */
+    private static final Object sRestoreLock = new Object();
+
+    private PetBackup() {
+    }
+
+    /**
+     * Returns the shelters that have pets to back up.
+     */
+    public static List<String> listShelters(Context context) {
+        return PetShardManager.getInstance(context).listShelters();
+    }
+
+    /**
+     * Write a backup of the pets of the given shelter.
+     *
+     * @param sinceSeq 0 for a full backup, otherwise the sequence number returned for the
+     *                 previous backup, to only write the changes made since then
+     * @return the sequence number to pass for the next incremental backup
+     * @throws FileNotFoundException if the shelter has no database
+     */
+    public static long export(Context context, String shelter, long sinceSeq, OutputStream out) throws IOException {
+        PetShardManager shardManager = PetShardManager.getInstance(context);
+        Shard shard = shardManager.acquire(shelter);
+        if (shard == null) {
+            throw new FileNotFoundException("No shelter " + shelter);
+        }
+        try {
+            SQLiteDatabase db = shard.dbHelper.getReadableDatabase();
+            // Read first: the pets changed while the backup is written are in this backup or
+            // the next one, possibly in both, which restoring tolerates
+            long toSeq = DatabaseUtils.longForQuery(db, "SELECT " + PetDbHelper.COLUMN_SEQ
+                    + " FROM " + PetDbHelper.BACKUP_SEQUENCE_TABLE, null);
+            boolean full = sinceSeq <= 0;
+            String[] sinceArgs = new String[]{String.valueOf(sinceSeq)};
+
+            PetBackupFormat.Writer writer = new PetBackupFormat.Writer(out,
+                    new PetBackupFormat.Header(PetBackupFormat.VERSION, full, full ? 0 : sinceSeq, toSeq));
+            try {
+                // All the queries are answered by the change_seq indexes. The pets are read
+                // before the archive, so that a pet moved meanwhile is at worst in both
+                String changedSelection = full ? null : PetDbHelper.COLUMN_CHANGE_SEQ + " > ?";
+                String[] changedArgs = full ? null : sinceArgs;
+                Cursor pets = db.query(PetDbHelper.PETS_VIEW, PET_COLUMNS, changedSelection, changedArgs,
+                        null, null, null);
+                try {
+                    while (pets.moveToNext()) {
+                        writer.writePet(pets.getLong(0), pets.getString(1), pets.getString(2), pets.getInt(3),
+                                pets.getLong(4), pets.getInt(5), pets.getLong(6));
+                    }
+                } finally {
+                    pets.close();
+                }
+
+                String[] archiveColumns = Arrays.copyOf(PET_COLUMNS, PET_COLUMNS.length + 1);
+                archiveColumns[PET_COLUMNS.length] = PetEntry.COLUMN_ARCHIVED;
+                Cursor archived = db.query(PetDbHelper.ARCHIVE_VIEW, archiveColumns, changedSelection, changedArgs,
+                        null, null, null);
+                try {
+                    while (archived.moveToNext()) {
+                        writer.writeArchived(archived.getLong(0), archived.getString(1), archived.getString(2),
+                                archived.getInt(3), archived.getLong(4), archived.getInt(5), archived.getLong(6),
+                                archived.getLong(7));
+                    }
+                } finally {
+                    archived.close();
+                }
+
+                if (!full) {
+                    Cursor deleted = db.query(PetDbHelper.BACKUP_TOMBSTONES_TABLE, new String[]{PetEntry._ID},
+                            PetDbHelper.COLUMN_CHANGE_SEQ + " > ?", sinceArgs, null, null, null);
+                    try {
+                        while (deleted.moveToNext()) {
+                            writer.writeDeleted(deleted.getLong(0));
+                        }
+                    } finally {
+                        deleted.close();
+                    }
+                }
+
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+            return toSeq;
+        } finally {
+            shardManager.release(shard);
+        }
+    }
+
+    /**
+     * Restore a backup written by {@link #export} into the given shelter.
+     *
+     * @param afterSeq if not negative, an incremental backup is only restored if it holds the
+     *                 changes made after this sequence number, that is if it follows the backup
+     *                 that went up to it
+     * @return the sequence number the restored backup goes up to
+     * @throws IOException if the backup cannot be read, is corrupt, of a later version or does
+     *                     not follow the given sequence number, in which case the pets are left
+     *                     untouched
+     */
+    public static long restore(Context context, String shelter, InputStream in, long afterSeq) throws IOException {
+        PetShardManager shardManager = PetShardManager.getInstance(context);
+        Shard shard = shardManager.acquireOrCreate(shelter);
+        PetBackupFormat.Header header;
+        int rows;
+        try {
+            SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+            synchronized (sRestoreLock) {
+                try {
+                    header = stage(db, in);
+                    if (afterSeq >= 0 && !header.full && header.sinceSeq != afterSeq) {
+                        throw new IOException("Backup of the changes after " + header.sinceSeq
+                                + " does not follow " + afterSeq);
+                    }
+                    rows = apply(db, header.full);
+                } finally {
+                    db.execSQL("DROP TABLE IF EXISTS " + STAGING_TABLE);
+                }
+                Log.i(LOG_TAG, "Restored " + (header.full ? "full" : "incremental") + " backup up to "
+                        + header.toSeq + " in shelter " + shelter + ", " + rows + " pets changed");
+            }
+            if (rows > 0) {
+                shard.photoStore.deleteOrphans(db);
+            }
+        } finally {
+            shardManager.release(shard);
+        }
+
+        if (rows > 0) {
+            PetQueryCache.getInstance(context).invalidate(shelter);
+            context.getContentResolver().notifyChange(PetEntry.buildChangeUri(shelter, null), null);
+        }
+        return header.toSeq;
+    }
+
+    /**
+     * Read the whole backup into the staging table, and verify its checksum.
+     */
+    private static PetBackupFormat.Header stage(SQLiteDatabase db, InputStream in) throws IOException {
+        db.execSQL("DROP TABLE IF EXISTS " + STAGING_TABLE);
+        db.execSQL("CREATE TABLE " + STAGING_TABLE + " (" + PetEntry._ID + " INTEGER PRIMARY KEY,"
+                + PetEntry.COLUMN_PET_NAME + " TEXT," + PetEntry.COLUMN_PET_BREED + " TEXT,"
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER," + PetEntry.COLUMN_PET_WEIGHT + " INTEGER,"
+                + PetEntry.COLUMN_PET_STATUS + " INTEGER," + PetDbHelper.COLUMN_STATUS_CHANGED + " INTEGER,"
+                + PetEntry.COLUMN_ARCHIVED + " INTEGER," + COLUMN_KIND + " INTEGER NOT NULL)");
+
+        PetBackupFormat.Reader reader = new PetBackupFormat.Reader(in);
+        try {
+            boolean end = false;
+            while (!end) {
+                db.beginTransaction();
+                try {
+                    SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + STAGING_TABLE + " ("
+                            + TextUtils.join(",", PET_COLUMNS) + "," + PetEntry.COLUMN_ARCHIVED + "," + COLUMN_KIND
+                            + ") VALUES (?,?,?,?,?,?,?,?,?)");
+                    try {
+                        for (int i = 0; i < CHUNK_ROWS && !end; i++) {
+                            int type = reader.next();
+                            insert.clearBindings();
+                            insert.bindLong(1, reader.id);
+                            if (type == PetBackupFormat.RECORD_PET || type == PetBackupFormat.RECORD_ARCHIVED) {
+                                bindStringOrNull(insert, 2, reader.name);
+                                bindStringOrNull(insert, 3, reader.breed);
+                                insert.bindLong(4, reader.gender);
+                                insert.bindLong(5, reader.weight);
+                                insert.bindLong(6, reader.status);
+                                insert.bindLong(7, reader.statusChanged);
+                                if (type == PetBackupFormat.RECORD_ARCHIVED) {
+                                    insert.bindLong(8, reader.archived);
+                                    insert.bindLong(9, KIND_ARCHIVED);
+                                } else {
+                                    insert.bindLong(9, KIND_PET);
+                                }
+                                insert.executeInsert();
+                            } else if (type == PetBackupFormat.RECORD_DELETED) {
+                                insert.bindLong(9, KIND_DELETED);
+                                insert.executeInsert();
+                            } else {
+                                end = true;
+                            }
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return reader.getHeader();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Returns the statement writing the pets of the given kind of the staging table to the
+     * given table, in a range of ids, when they differ from their backup. The pets keep their
+     * photo, wherever it is.
+     */
+    private static String buildWriteChanged(String table, int kind, String[] columns) {
+        String id = PetEntry._ID;
+        String photo = PetEntry.COLUMN_PET_PHOTO;
+
+        // The tables have the ids of the breeds named by the backup, added beforehand
+        String[] tableColumns = new String[columns.length];
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (PetEntry.COLUMN_PET_BREED.equals(columns[i])) {
+                tableColumns[i] = PetDbHelper.COLUMN_BREED_ID;
+                values[i] = "(SELECT b." + id + " FROM " + PetDbHelper.BREEDS_TABLE + " b WHERE b."
+                        + PetDbHelper.COLUMN_BREED_NAME + " = s." + columns[i] + ")";
+            } else {
+                tableColumns[i] = columns[i];
+                values[i] = "s." + columns[i];
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO " + table + " (" + TextUtils.join(",", tableColumns)
+                + "," + photo + ") SELECT ");
+        for (String value : values) {
+            sb.append(value).append(",");
+        }
+        sb.append("ifnull((SELECT ").append(photo).append(" FROM ").append(PetEntry.TABLE_NAME)
+                .append(" p WHERE p.").append(id).append(" = s.").append(id).append("),")
+                .append("(SELECT ").append(photo).append(" FROM ").append(PetDbHelper.ARCHIVE_TABLE)
+                .append(" a WHERE a.").append(id).append(" = s.").append(id).append("))");
+        sb.append(" FROM ").append(STAGING_TABLE).append(" s WHERE s.").append(COLUMN_KIND).append(" = ").append(kind)
+                .append(" AND s.").append(id).append(" BETWEEN ? AND ?")
+                .append(" AND NOT EXISTS (SELECT 1 FROM ").append(table).append(" t WHERE t.").append(id)
+                .append(" = s.").append(id);
+        for (int i = 0; i < columns.length; i++) {
+            sb.append(" AND t.").append(tableColumns[i]).append(" IS ").append(values[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Apply the staged records to the pets and the archive, one range of ids at a time.
+     * Return the number of pets written or deleted.
+     */
+    private static int apply(SQLiteDatabase db, boolean full) {
+        String staged = STAGING_TABLE;
+        String id = PetEntry._ID;
+        String range = " BETWEEN ? AND ?";
+
+        String[] archiveColumns = Arrays.copyOf(PET_COLUMNS, PET_COLUMNS.length + 1);
+        archiveColumns[PET_COLUMNS.length] = PetEntry.COLUMN_ARCHIVED;
+        // Written before the deletes, so that a pet moving between the pets and the archive
+        // is always in one of them, and leaves no tombstone
+        String addBreeds = "INSERT OR IGNORE INTO " + PetDbHelper.BREEDS_TABLE + " (" + PetDbHelper.COLUMN_BREED_NAME
+                + ") SELECT " + PetEntry.COLUMN_PET_BREED + " FROM " + staged + " WHERE " + id + range
+                + " AND " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL";
+        String writeArchived = buildWriteChanged(PetDbHelper.ARCHIVE_TABLE, KIND_ARCHIVED, archiveColumns);
+        String writePets = buildWriteChanged(PetEntry.TABLE_NAME, KIND_PET, PET_COLUMNS);
+
+        // Removes from each table the pets the backup has elsewhere, or, for a full backup,
+        // all the pets it does not have in that table
+        String[] deletes = new String[2];
+        String[] tables = {PetEntry.TABLE_NAME, PetDbHelper.ARCHIVE_TABLE};
+        int[] kinds = {KIND_PET, KIND_ARCHIVED};
+        for (int i = 0; i < tables.length; i++) {
+            deletes[i] = full
+                    ? "DELETE FROM " + tables[i] + " WHERE " + id + range + " AND " + id + " NOT IN (SELECT " + id
+                    + " FROM " + staged + " WHERE " + COLUMN_KIND + " = " + kinds[i] + ")"
+                    : "DELETE FROM " + tables[i] + " WHERE " + id + " IN (SELECT " + id + " FROM " + staged
+                    + " WHERE " + COLUMN_KIND + " != " + kinds[i] + " AND " + id + range + ")";
+        }
+
+        int rows = 0;
+        long low = Long.MIN_VALUE;
+        while (true) {
+            db.beginTransaction();
+            long high;
+            try {
+                // The last id of the next chunk of staged records, or the end of the ids
+                Cursor cursor = db.rawQuery("SELECT " + id + " FROM " + staged + " WHERE " + id + " >= ? ORDER BY "
+                        + id + " LIMIT 1 OFFSET " + (CHUNK_ROWS - 1), new String[]{String.valueOf(low)});
+                try {
+                    high = cursor.moveToFirst() ? cursor.getLong(0) : Long.MAX_VALUE;
+                } finally {
+                    cursor.close();
+                }
+                String[] rangeArgs = new String[]{String.valueOf(low), String.valueOf(high)};
+
+                executeUpdateDelete(db, addBreeds, rangeArgs);
+                rows += executeUpdateDelete(db, writeArchived, rangeArgs);
+                rows += executeUpdateDelete(db, writePets, rangeArgs);
+                for (String delete : deletes) {
+                    rows += executeUpdateDelete(db, delete, rangeArgs);
+                }
+                PetDbHelper.fillMatchKeys(db, PetDbHelper.COLUMN_MATCH_KEY + " IS NULL AND " + id + range, rangeArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (high == Long.MAX_VALUE) {
+                return rows;
+            }
+            low = high + 1;
+        }
+    }
+
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, String[] args) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(args);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+package com.example.android.pets.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary format of the pets backups written and read by {@link PetBackup}.
+ * <p>
+ * A backup starts with an uncompressed header: the magic "PETB", the {@link #VERSION} of the
+ * format, the flags, and the sequence numbers the backup goes from and up to. Then comes a
+ * deflate stream of records, each starting with its type:
+ * <ul>
+ * <li>{@link #RECORD_PET}: id, name, breed, gender, weight, status and time of the last status
+ * change of a pet;</li>
+ * <li>{@link #RECORD_ARCHIVED}: the same fields for an archived pet, followed by the time it
+ * was archived;</li>
+ * <li>{@link #RECORD_DELETED}: id of a deleted pet, only in incremental backups;</li>
+ * <li>{@link #RECORD_END}: number of records before it, followed by the CRC32 of the header
+ * and of all the uncompressed bytes before the checksum itself.</li>
+ * </ul>
+ * Numbers are written as varints, zigzag encoded when they can be negative, and strings as
+ * their UTF-8 length plus one (0 for null) followed by their UTF-8 bytes.
+ * <p>
+ * Version 1 had no archive: its pet records end with the weight.
+ */
+final class PetBackupFormat {
+
+    private static final byte[] MAGIC = {'P', 'E', 'T', 'B'};
+
+    /**
+     * Current version of the format. Readers reject backups of a later version.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Flag of the backups holding every pet, rather than the changes since a previous backup
+     */
+    static final int FLAG_FULL = 1;
+
+    static final int RECORD_END = 0;
+    static final int RECORD_PET = 1;
+    static final int RECORD_DELETED = 2;
+    static final int RECORD_ARCHIVED = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PetBackupFormat() {
+    }
+
+    /**
+     * Header of a backup
+     */
+    static final class Header {
+
+        final int version;
+        final boolean full;
+
+        /**
+         * The backup holds the changes made after this sequence number, 0 for a full backup
+         */
+        final long sinceSeq;
+
+        /**
+         * The backup holds at least all the changes made up to this sequence number
+         */
+        final long toSeq;
+
+        Header(int version, boolean full, long sinceSeq, long toSeq) {
+            this.version = version;
+            this.full = full;
+            this.sinceSeq = sinceSeq;
+            this.toSeq = toSeq;
+        }
+
+        private byte[] toBytes() {
+            byte[] bytes = new byte[MAGIC.length + 2 + 16];
+            System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+            bytes[MAGIC.length] = (byte) version;
+            bytes[MAGIC.length + 1] = (byte) (full ? FLAG_FULL : 0);
+            putLong(bytes, MAGIC.length + 2, sinceSeq);
+            putLong(bytes, MAGIC.length + 10, toSeq);
+            return bytes;
+        }
+
+        private static void putLong(byte[] bytes, int offset, long value) {
+            for (int i = 7; i >= 0; i--) {
+                bytes[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+
+        private static long getLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        private static Header fromBytes(byte[] bytes) throws IOException {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (bytes[i] != MAGIC[i]) {
+                    throw new IOException("Not a pets backup");
+                }
+            }
+            int version = bytes[MAGIC.length] & 0xff;
+            if (version > VERSION) {
+                throw new IOException("Unsupported pets backup version " + version);
+            }
+            boolean full = (bytes[MAGIC.length + 1] & FLAG_FULL) != 0;
+            return new Header(version, full, getLong(bytes, MAGIC.length + 2), getLong(bytes, MAGIC.length + 10));
+        }
+    }
+
+    /**
+     * Writes a backup, one record at a time
+     */
+    static final class Writer {
+
+        private final OutputStream mOut;
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private final DeflaterOutputStream mDeflaterStream;
+        private final BufferedOutputStream mBuffer;
+        private final CheckedOutputStream mChecked;
+        private final CRC32 mCrc = new CRC32();
+        private long mRecords;
+
+        Writer(OutputStream out, Header header) throws IOException {
+            mOut = out;
+            byte[] headerBytes = header.toBytes();
+            mOut.write(headerBytes);
+            mCrc.update(headerBytes, 0, headerBytes.length);
+
+            mDeflaterStream = new DeflaterOutputStream(out, mDeflater);
+            mBuffer = new BufferedOutputStream(mDeflaterStream);
+            mChecked = new CheckedOutputStream(mBuffer, mCrc);
+        }
+
+        void writePet(long id, String name, String breed, int gender, long weight, int status, long statusChanged)
+                throws IOException {
+            mChecked.write(RECORD_PET);
+            writePetFields(id, name, breed, gender, weight, status, statusChanged);
+            mRecords++;
+        }
+
+        void writeArchived(long id, String name, String breed, int gender, long weight, int status,
+                           long statusChanged, long archived) throws IOException {
+            mChecked.write(RECORD_ARCHIVED);
+            writePetFields(id, name, breed, gender, weight, status, statusChanged);
+            writeVarint(zigzag(archived));
+            mRecords++;
+        }
+
+        private void writePetFields(long id, String name, String breed, int gender, long weight, int status,
+                                    long statusChanged) throws IOException {
+            writeVarint(id);
+            writeString(name);
+            writeString(breed);
+            writeVarint(gender);
+            writeVarint(zigzag(weight));
+            writeVarint(status);
+            writeVarint(zigzag(statusChanged));
+        }
+
+        void writeDeleted(long id) throws IOException {
+            mChecked.write(RECORD_DELETED);
+            writeVarint(id);
+            mRecords++;
+        }
+
+        /**
+         * Write the end record and the checksum, and complete the deflate stream. The
+         * underlying stream is flushed but left open.
+         */
+        void finish() throws IOException {
+            mChecked.write(RECORD_END);
+            writeVarint(mRecords);
+            long crc = mCrc.getValue();
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                mBuffer.write((int) (crc >>> shift));
+            }
+            mBuffer.flush();
+            mDeflaterStream.finish();
+            mOut.flush();
+        }
+
+        /**
+         * Release the native memory of the compressor. The underlying stream is left open.
+         */
+        void close() {
+            mDeflater.end();
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mChecked.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            mChecked.write((int) value);
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarint(bytes.length + 1);
+            mChecked.write(bytes);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    /**
+     * Reads a backup, one record at a time, without holding more than a record in memory
+     */
+    static final class Reader {
+
+        /**
+         * Longest string accepted, so that a corrupt length cannot exhaust the memory
+         */
+        private static final int MAX_STRING_BYTES = 64 * 1024;
+
+        private final Header mHeader;
+        private final Inflater mInflater = new Inflater();
+        private final DataInputStream mBuffer;
+        private final CheckedInputStream mChecked;
+        private final CRC32 mCrc = new CRC32();
+        private long mRecords;
+
+        long id;
+        String name;
+        String breed;
+        int gender;
+        long weight;
+        int status;
+        long statusChanged;
+        long archived;
+
+        Reader(InputStream in) throws IOException {
+            byte[] headerBytes = new byte[MAGIC.length + 2 + 16];
+            new DataInputStream(in).readFully(headerBytes);
+            mHeader = Header.fromBytes(headerBytes);
+            mCrc.update(headerBytes, 0, headerBytes.length);
+
+            mBuffer = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in, mInflater)));
+            mChecked = new CheckedInputStream(mBuffer, mCrc);
+        }
+
+        Header getHeader() {
+            return mHeader;
+        }
+
+        /**
+         * Read the next record into the fields of the reader, and return its type. The
+         * checksum is verified when the {@link #RECORD_END} is read.
+         *
+         * @throws IOException if the backup is truncated or corrupt
+         */
+        int next() throws IOException {
+            int type = readByte();
+            switch (type) {
+                case RECORD_PET:
+                    readPetFields();
+                    mRecords++;
+                    return type;
+                case RECORD_ARCHIVED:
+                    if (mHeader.version < 2) {
+                        throw new IOException("Unknown record " + type + " in pets backup");
+                    }
+                    readPetFields();
+                    archived = unzigzag(readVarint());
+                    mRecords++;
+                    return type;
+                case RECORD_DELETED:
+                    id = readVarint();
+                    name = null;
+                    breed = null;
+                    mRecords++;
+                    return type;
+                case RECORD_END:
+                    long records = readVarint();
+                    long expectedCrc = mCrc.getValue();
+                    long crc = mBuffer.readInt() & 0xffffffffL;
+                    if (records != mRecords || crc != expectedCrc) {
+                        throw new IOException("Corrupt pets backup");
+                    }
+                    return type;
+                default:
+                    throw new IOException("Unknown record " + type + " in pets backup");
+            }
+        }
+
+        private void readPetFields() throws IOException {
+            id = readVarint();
+            name = readString();
+            breed = readString();
+            gender = (int) readVarint();
+            weight = unzigzag(readVarint());
+            if (mHeader.version >= 2) {
+                status = (int) readVarint();
+                statusChanged = unzigzag(readVarint());
+            } else {
+                status = 0;
+                statusChanged = 0;
+            }
+        }
+
+        /**
+         * Release the native memory of the decompressor. The underlying stream is left open.
+         */
+        void close() {
+            mInflater.end();
+        }
+
+        private int readByte() throws IOException {
+            int b = mChecked.read();
+            if (b < 0) {
+                throw new EOFException("Truncated pets backup");
+            }
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt varint in pets backup");
+        }
+
+        private String readString() throws IOException {
+            long length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            if (length - 1 > MAX_STRING_BYTES) {
+                throw new IOException("Corrupt string in pets backup");
+            }
+            byte[] bytes = new byte[(int) length - 1];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = mChecked.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated pets backup");
+                }
+                read += count;
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+}
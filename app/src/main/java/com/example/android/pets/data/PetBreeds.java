@@ -0,0 +1,90 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the {@link PetDbHelper#BREEDS_TABLE} of a shelter, mapping the breed ids
+ * to their names and back, so that the writes of {@link PetProvider} rarely look up the ids
+ * in the database, and the copies of the query results share one instance of each name.
+ * <p>
+ * Breeds are only ever added, so the copy is only ever extended, with the breeds added since
+ * it was last read. It only holds committed breeds: a breed added by a transaction that is
+ * later rolled back would leave its id to another breed. All the methods can be called from
+ * any thread.
+ */
+final class PetBreeds {
+
+    private final PetDbHelper mDbHelper;
+
+    private final ConcurrentHashMap<String, Long> mIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> mNames = new ConcurrentHashMap<>();
+
+    /**
+     * Largest id read so far, guarded by this
+     */
+    private long mLastId;
+
+    PetBreeds(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the id of the breed with the given name, adding it to the breeds table if it is
+     * new. Must be called inside the transaction writing the pets.
+     */
+    long getId(SQLiteDatabase db, String name) {
+        Long id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        // Not copied yet, as the transaction may still be rolled back
+        return PetDbHelper.internBreed(db, name);
+    }
+
+    /**
+     * Returns the instance of the given breed name shared by all its pets, or the given name if
+     * it is not a known breed.
+     */
+    String share(String name) {
+        if (name == null) {
+            return null;
+        }
+        Long id = mIds.get(name);
+        if (id == null) {
+            SQLiteDatabase db = mDbHelper.getReadableDatabase();
+            // A transaction of this thread would show breeds that are not committed yet
+            if (db.inTransaction()) {
+                return name;
+            }
+            readNewBreeds(db);
+            id = mIds.get(name);
+            if (id == null) {
+                return name;
+            }
+        }
+        return mNames.get(id);
+    }
+
+    private synchronized void readNewBreeds(SQLiteDatabase db) {
+        Cursor cursor = db.query(PetDbHelper.BREEDS_TABLE, new String[]{PetEntry._ID, PetDbHelper.COLUMN_BREED_NAME},
+                PetEntry._ID + " > ?", new String[]{String.valueOf(mLastId)}, null, null, PetEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String name = cursor.getString(1);
+                // The name first, so that an id found by name always has its name
+                mNames.put(id, name);
+                mIds.put(name, id);
+                mLastId = id;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the sort and filter query parameters of a pets list URI into the
+ * whitelisted ORDER BY and WHERE clauses that {@link PetProvider} runs.
+ * <p>
+ * Every combination of the clauses listed here is checked against the catalog indexes of
+ * {@link PetDbHelper} (see {@link PetQueryPlanChecker}). The selection and sort order passed
+ * by the caller are run as they are, and are only as fast as the indexes make them.
+ */
+final class PetCatalogQuery {
+
+    /**
+     * Supported sort orders, mapped to their ORDER BY clause.
+     */
+    private static final Map<String, String> ORDER_BY;
+
+    static {
+        String name = PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+        String weight = PetEntry.COLUMN_PET_WEIGHT;
+
+        Map<String, String> orderBy = new LinkedHashMap<>();
+        orderBy.put(PetEntry.SORT_NAME_ASC, name + " ASC");
+        orderBy.put(PetEntry.SORT_NAME_DESC, name + " DESC");
+        orderBy.put(PetEntry.SORT_WEIGHT_ASC, weight + " ASC," + name + " ASC");
+        orderBy.put(PetEntry.SORT_WEIGHT_DESC, weight + " DESC," + name + " DESC");
+        ORDER_BY = Collections.unmodifiableMap(orderBy);
+    }
+
+    final String selection;
+    final String[] selectionArgs;
+    final String sortOrder;
+
+    private PetCatalogQuery(String selection, String[] selectionArgs, String sortOrder) {
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.sortOrder = sortOrder;
+    }
+
+    /**
+     * Returns the keys of all the supported sort orders.
+     */
+    static Set<String> sortKeys() {
+        return ORDER_BY.keySet();
+    }
+
+    /**
+     * Returns whether the given ORDER BY clause is one of the supported sort orders.
+     */
+    static boolean isSupportedSortOrder(String sortOrder) {
+        return ORDER_BY.containsValue(sortOrder);
+    }
+
+    /**
+     * Combine the sort and filter parameters of the given pets list URI with the
+     * selection and sort order passed by the caller. The sort parameter of the URI, if any,
+     * takes precedence over the sort order of the caller. Without either, the pets are sorted
+     * by name, as the catalog shows them on its first launch.
+     *
+     * @throws IllegalArgumentException if the URI asks for a sort order or a filter value
+     *                                  that is not supported
+     */
+    static PetCatalogQuery fromUri(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+
+        String sortKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT);
+        if (sortKey != null) {
+            sortOrder = ORDER_BY.get(sortKey);
+            if (sortOrder == null) {
+                throw new IllegalArgumentException("Unsupported sort order " + sortKey);
+            }
+        } else if (sortOrder == null) {
+            sortOrder = ORDER_BY.get(PetEntry.SORT_NAME_ASC);
+        }
+
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        if (gender != null) {
+            if (!isValidGender(gender)) {
+                throw new IllegalArgumentException("Unsupported gender filter " + gender);
+            }
+            selection = DatabaseUtils.concatenateWhere(selection, PetEntry.COLUMN_PET_GENDER + "=?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{gender});
+        }
+
+        String breed = uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED);
+        if (breed != null) {
+            // On the breed id, which the catalog indexes hold, looked up once by name
+            selection = DatabaseUtils.concatenateWhere(selection, PetDbHelper.COLUMN_BREED_ID + "=(SELECT "
+                    + PetEntry._ID + " FROM " + PetDbHelper.BREEDS_TABLE + " WHERE " + PetDbHelper.COLUMN_BREED_NAME + "=?)");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{breed});
+        }
+
+        return new PetCatalogQuery(selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Same as {@link #fromUri(Uri, String, String[], String)} for a weight range URI, whose
+     * range is added to the selection. Without an explicit sort order the pets are sorted
+     * by weight, which is the order of the weight index.
+     *
+     * @throws IllegalArgumentException if the range is not valid
+     */
+    static PetCatalogQuery fromWeightRangeUri(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+
+        // pets/weight/<min>/<max>[/histogram/<bucket size>]
+        long minWeight = parseLongSegment(uri, 2);
+        long maxWeight = parseLongSegment(uri, 3);
+        if (minWeight > maxWeight) {
+            throw new IllegalArgumentException("Weight range is empty in " + uri);
+        }
+
+        selection = DatabaseUtils.concatenateWhere(selection, PetEntry.COLUMN_PET_WEIGHT + " BETWEEN ? AND ?");
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[]{String.valueOf(minWeight), String.valueOf(maxWeight)});
+
+        if (sortOrder == null && uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT) == null) {
+            sortOrder = ORDER_BY.get(PetEntry.SORT_WEIGHT_ASC);
+        }
+        return fromUri(uri, selection, selectionArgs, sortOrder);
+    }
+
+    private static long parseLongSegment(Uri uri, int index) {
+        try {
+            return Long.parseLong(uri.getPathSegments().get(index));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid weight range in " + uri, e);
+        }
+    }
+
+    private static boolean isValidGender(String gender) {
+        if (!TextUtils.isDigitsOnly(gender) || gender.isEmpty()) {
+            return false;
+        }
+        try {
+            return PetEntry.isValidGender(Integer.parseInt(gender));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+}
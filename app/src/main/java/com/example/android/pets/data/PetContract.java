@@ -1,9 +1,12 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.List;
+
 /**
  * Created by hjalmar
  * On 09/07/2018.
@@ -26,9 +29,135 @@ public final class PetContract {
      */
     public static final String PATH_PETS = PetEntry.TABLE_NAME;
 
+    /**
+     * Path (appended to the pets path) for the pets whose weight falls in a range.
+     */
+    public static final String PATH_WEIGHT = "weight";
+
+    /**
+     * Path (appended to a weight range path) for the weight distribution of the pets in the range.
+     */
+    public static final String PATH_HISTOGRAM = "histogram";
+
+    /**
+     * Path (appended to the pets path) for the alphabetical sections of the pets list.
+     */
+    public static final String PATH_SECTIONS = "sections";
+
+    /**
+     * Path (appended to the pets path) for the pets that may be the same animal as a new one.
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+
+    /**
+     * Path appended to the URI of a single pet for its photo
+     */
+    public static final String PATH_PHOTO = "photo";
+
+    /**
+     * Path (appended to the pets path) for the backup of the pets, read and written as a file
+     */
+    public static final String PATH_BACKUP = "backup";
+
+    /**
+     * Path (appended to the pets path) for the pets moved to the archive, see
+     * {@link PetEntry#ARCHIVE_CONTENT_URI}.
+     */
+    public static final String PATH_ARCHIVE = "archive";
+
+    /**
+     * Path prefixed to any of the URIs above to address the pets of a single shelter,
+     * e.g. content://com.example.android.pets/shelters/north/pets/5.
+     * Each shelter is kept in a database of its own, created by the first pets inserted or
+     * restored into it: until then the shelter reads as empty and its pets cannot be changed.
+     */
+    public static final String PATH_SHELTERS = "shelters";
+
+    /**
+     * Shelter of the URIs without a {@link #PATH_SHELTERS} prefix
+     */
+    public static final String DEFAULT_SHELTER = "default";
+
+    /**
+     * Pseudo shelter addressing the pets of all the shelters at once. Only the pets list
+     * (with its sort and filter parameters) can be queried through it, and its rows carry
+     * the {@link PetEntry#COLUMN_SHELTER} of each pet, as ids are only unique within a shelter.
+     */
+    public static final String ALL_SHELTERS = "all";
+
+    /**
+     * Longest name of a shelter
+     */
+    private static final int MAX_SHELTER_LENGTH = 64;
+
     private PetContract() {
     }
 
+    /**
+     * Returns whether the given name can be used for a shelter: 1 to 64 letters, digits,
+     * '_' or '-', and not {@link #ALL_SHELTERS}.
+     */
+    public static boolean isValidShelter(String shelter) {
+        if (shelter == null || shelter.isEmpty() || shelter.length() > MAX_SHELTER_LENGTH
+                || ALL_SHELTERS.equals(shelter)) {
+            return false;
+        }
+        for (int i = 0; i < shelter.length(); i++) {
+            char c = shelter.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the given URI of this contract addressed to the given shelter, which may be
+     * {@link #ALL_SHELTERS}. The URIs of the {@link #DEFAULT_SHELTER} keep no prefix.
+     */
+    public static Uri buildShelterUri(String shelter, Uri uri) {
+        if (!isValidShelter(shelter) && !ALL_SHELTERS.equals(shelter)) {
+            throw new IllegalArgumentException("Invalid shelter " + shelter);
+        }
+        uri = withoutShelter(uri);
+        if (DEFAULT_SHELTER.equals(shelter)) {
+            return uri;
+        }
+        Uri.Builder builder = uri.buildUpon().path(null).appendPath(PATH_SHELTERS).appendPath(shelter);
+        for (String segment : uri.getPathSegments()) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the shelter the given URI is addressed to.
+     */
+    public static String getShelter(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() >= 2 && PATH_SHELTERS.equals(segments.get(0))) {
+            return segments.get(1);
+        }
+        return DEFAULT_SHELTER;
+    }
+
+    /**
+     * Returns the given URI without its shelter prefix, if any.
+     */
+    public static Uri withoutShelter(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !PATH_SHELTERS.equals(segments.get(0))) {
+            return uri;
+        }
+        Uri.Builder builder = uri.buildUpon().path(null);
+        for (String segment : segments.subList(2, segments.size())) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
     public static final class PetEntry implements BaseColumns {
 
         /**
@@ -36,6 +165,14 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI of the archive: the pets adopted or inactive for more than
+         * {@link #ARCHIVE_DELAY_MILLIS}, moved out of the {@link #CONTENT_URI} by the background
+         * maintenance. The archive can be queried, as a list or one pet at a time by appending
+         * its id, but not written. Its rows also have the {@link #COLUMN_ARCHIVED} column.
+         */
+        public static final Uri ARCHIVE_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ARCHIVE);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -46,6 +183,33 @@ public final class PetContract {
          */
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /**
+         * The MIME types of the {@link #ARCHIVE_CONTENT_URI} for a list of archived pets, and
+         * for a single archived pet.
+         */
+        public static final String ARCHIVE_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_ARCHIVE;
+        public static final String ARCHIVE_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_ARCHIVE;
+
+        /**
+         * The MIME type of a weight histogram of the pets.
+         */
+        public static final String CONTENT_HISTOGRAM_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_HISTOGRAM;
+
+        /**
+         * The MIME type of the alphabetical sections of the pets list.
+         */
+        public static final String CONTENT_SECTIONS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_SECTIONS;
+
+        /**
+         * The MIME type of the photo of a pet, stored as a JPEG.
+         */
+        public static final String PHOTO_TYPE = "image/jpeg";
+
+        /**
+         * The MIME type of a backup of the pets.
+         */
+        public static final String BACKUP_TYPE = "application/vnd." + CONTENT_AUTHORITY + ".backup";
+
         /**
          * Name of the database table for pets.
          */
@@ -85,6 +249,44 @@ public final class PetContract {
          */
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Version of the photo of the pet, changed every time a new photo is written to
+         * {@link #buildPhotoUri(String, long)}, or null if the pet has no photo. Managed by the provider,
+         * it cannot be set through insert or update.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PET_PHOTO = "photo";
+
+        /**
+         * Status of the pet.
+         * <p>
+         * The only possible values are
+         * {@link #STATUS_AVAILABLE},
+         * {@link #STATUS_ADOPTED},
+         * {@link #STATUS_INACTIVE}.
+         * The pets that are not available are moved to the archive
+         * {@link #ARCHIVE_DELAY_MILLIS} after their status last changed.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PET_STATUS = "status";
+
+        /**
+         * Time the pet was moved to the archive, in milliseconds since the epoch, only in the
+         * rows of the {@link #ARCHIVE_CONTENT_URI}.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ARCHIVED = "archived";
+
+        /**
+         * Shelter of the pet, only in the rows queried through {@link PetContract#ALL_SHELTERS}.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_SHELTER = "shelter";
+
         /**
          * Possible values for the gender of the pet.
          */
@@ -101,6 +303,388 @@ public final class PetContract {
         public static boolean isValidGender(int gender) {
             return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
         }
+
+        /**
+         * Possible values for the status of the pet.
+         */
+        public static final int STATUS_AVAILABLE = 0;
+        public static final int STATUS_ADOPTED = 1;
+        public static final int STATUS_INACTIVE = 2;
+
+        /**
+         * Returns whether or not the given status is
+         * {@link #STATUS_AVAILABLE},
+         * {@link #STATUS_ADOPTED}, or
+         * {@link #STATUS_INACTIVE}.
+         */
+        public static boolean isValidStatus(int status) {
+            return status == STATUS_AVAILABLE || status == STATUS_ADOPTED || status == STATUS_INACTIVE;
+        }
+
+        /**
+         * Time a pet stays in the pets list after it stopped being available, before being
+         * moved to the archive
+         */
+        public static final long ARCHIVE_DELAY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+        /**
+         * Lower bound of a bucket of a weight histogram, the upper bound is excluded.
+         * The number of pets in the bucket is in the {@link #_COUNT} column.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+
+        /**
+         * First letter of the names of the pets in an alphabetical section, compared ignoring case.
+         * The number of pets in the section is in the {@link #_COUNT} column.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_SECTION = "section";
+
+        /**
+         * Provider method, to be passed to {@link ContentResolver#call}, that updates all the pets
+         * listed in {@link #EXTRA_IDS} with the {@link #EXTRA_VALUES} in a single transaction.
+         * The number of updated pets is returned in {@link #EXTRA_ROW_COUNT}.
+         */
+        public static final String METHOD_BULK_UPDATE = "bulk_update";
+
+        /**
+         * Provider method, to be passed to {@link ContentResolver#call}, that deletes all the pets
+         * listed in {@link #EXTRA_IDS} in a single transaction, or only hides them until the
+         * deletion is committed or undone when {@link #EXTRA_DEFERRED} is set.
+         * The number of deleted pets is returned in {@link #EXTRA_ROW_COUNT}.
+         */
+        public static final String METHOD_BULK_DELETE = "bulk_delete";
+
+        /**
+         * Extra of {@link #METHOD_BULK_DELETE}, true to hide the pets until
+         * {@link #METHOD_COMMIT_DELETES} or {@link #METHOD_UNDO_DELETES} is called, as a delete
+         * through a {@link #buildDeferredDeleteUri(Uri)} does.
+         * <p>
+         * Type: boolean
+         */
+        public static final String EXTRA_DEFERRED = "deferred";
+
+        /**
+         * Provider method, to be passed to {@link ContentResolver#call}, that restores all the
+         * pets of the {@link #EXTRA_SHELTER} deleted through a {@link #buildDeferredDeleteUri(Uri)}
+         * and not committed yet.
+         * The number of restored pets is returned in {@link #EXTRA_ROW_COUNT}.
+         */
+        public static final String METHOD_UNDO_DELETES = "undo_deletes";
+
+        /**
+         * Provider method, to be passed to {@link ContentResolver#call}, that removes for good,
+         * in a single transaction, all the pets of the {@link #EXTRA_SHELTER} deleted through a
+         * {@link #buildDeferredDeleteUri(Uri)}.
+         * The number of removed pets is returned in {@link #EXTRA_ROW_COUNT}.
+         */
+        public static final String METHOD_COMMIT_DELETES = "commit_deletes";
+
+        /**
+         * Extra of the bulk methods holding the ids of the pets to change.
+         * <p>
+         * Type: long[]
+         */
+        public static final String EXTRA_IDS = "ids";
+
+        /**
+         * Extra of {@link #METHOD_BULK_UPDATE} holding the new values of the pets.
+         * <p>
+         * Type: ContentValues
+         */
+        public static final String EXTRA_VALUES = "values";
+
+        /**
+         * Result of the bulk methods holding the number of pets that were changed.
+         * <p>
+         * Type: int
+         */
+        public static final String EXTRA_ROW_COUNT = "row_count";
+
+        /**
+         * Extra of the bulk methods holding the shelter of the pets,
+         * {@link PetContract#DEFAULT_SHELTER} if missing.
+         * <p>
+         * Type: String
+         */
+        public static final String EXTRA_SHELTER = "shelter";
+
+        /**
+         * Query parameter of a delete URI, set to "true" to only hide the deleted pets until
+         * {@link #METHOD_COMMIT_DELETES} or {@link #METHOD_UNDO_DELETES} is called.
+         */
+        public static final String QUERY_PARAM_DEFERRED = "deferred";
+
+        /**
+         * Returns the given pets or single pet URI, for a delete that can be undone.
+         * Pets deleted that way disappear from the queries at once, but stay in the database
+         * until the deletion is committed. The provider commits the deletions left pending
+         * by a previous run of the app when it first uses the shelter.
+         */
+        public static Uri buildDeferredDeleteUri(Uri uri) {
+            return uri.buildUpon().appendQueryParameter(QUERY_PARAM_DEFERRED, "true").build();
+        }
+
+        /**
+         * Query parameter of the change notifications sent by the provider on the
+         * {@link #CONTENT_URI}, holding the comma separated ids of the changed pets.
+         * A notification without it may concern any pet.
+         */
+        public static final String QUERY_PARAM_CHANGED_IDS = "changed_ids";
+
+        /**
+         * Returns the URI notified when the given pets change.
+         *
+         * @param ids the changed pets, or null if any pet may have changed
+         */
+        public static Uri buildChangeUri(long[] ids) {
+            return buildChangeUri(DEFAULT_SHELTER, ids);
+        }
+
+        /**
+         * Returns the URI notified when the given pets of the given shelter change.
+         *
+         * @param ids the changed pets, or null if any pet of the shelter may have changed
+         */
+        public static Uri buildChangeUri(String shelter, long[] ids) {
+            Uri shelterUri = buildShelterUri(shelter, CONTENT_URI);
+            if (ids == null) {
+                return shelterUri;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(ids[i]);
+            }
+            return shelterUri.buildUpon().appendQueryParameter(QUERY_PARAM_CHANGED_IDS, sb.toString()).build();
+        }
+
+        /**
+         * Returns the ids of the pets concerned by a change notification, or null if any pet
+         * may have changed.
+         */
+        public static long[] parseChangedIds(Uri uri) {
+            String changedIds = uri.getQueryParameter(QUERY_PARAM_CHANGED_IDS);
+            if (changedIds == null) {
+                // Single pet URI
+                List<String> segments = withoutShelter(uri).getPathSegments();
+                if (segments.size() == 2 && PATH_PETS.equals(segments.get(0))) {
+                    try {
+                        return new long[]{Long.parseLong(segments.get(1))};
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                return null;
+            }
+
+            if (changedIds.isEmpty()) {
+                return new long[0];
+            }
+            String[] parts = changedIds.split(",");
+            long[] ids = new long[parts.length];
+            try {
+                for (int i = 0; i < parts.length; i++) {
+                    ids[i] = Long.parseLong(parts[i]);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return ids;
+        }
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} selecting one of the supported sort orders.
+         * <p>
+         * The only possible values are
+         * {@link #SORT_NAME_ASC},
+         * {@link #SORT_NAME_DESC},
+         * {@link #SORT_WEIGHT_ASC},
+         * {@link #SORT_WEIGHT_DESC}.
+         */
+        public static final String QUERY_PARAM_SORT = "sort";
+
+        /**
+         * Possible values for the sort order of the pets list.
+         */
+        public static final String SORT_NAME_ASC = "name_asc";
+        public static final String SORT_NAME_DESC = "name_desc";
+        public static final String SORT_WEIGHT_ASC = "weight_asc";
+        public static final String SORT_WEIGHT_DESC = "weight_desc";
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} restricting the pets list to a single gender.
+         */
+        public static final String QUERY_PARAM_GENDER = "gender";
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} restricting the pets list to a single breed.
+         */
+        public static final String QUERY_PARAM_BREED = "breed";
+
+        /**
+         * Query parameter of the duplicates URI holding the name of the new pet.
+         */
+        public static final String QUERY_PARAM_NAME = "name";
+
+        /**
+         * Query parameter of the pets URI passed to insert() or bulkInsert(), telling what to do
+         * with a pet that has the same name, breed and gender as a pet already registered,
+         * ignoring case and accents. One of {@link #ON_DUPLICATE_ALLOW} (the default),
+         * {@link #ON_DUPLICATE_REJECT} and {@link #ON_DUPLICATE_MERGE}.
+         */
+        public static final String QUERY_PARAM_ON_DUPLICATE = "on_duplicate";
+
+        /**
+         * Insert the pet anyway.
+         */
+        public static final String ON_DUPLICATE_ALLOW = "allow";
+
+        /**
+         * Skip the pet: insert() returns null, and bulkInsert() does not count it.
+         */
+        public static final String ON_DUPLICATE_REJECT = "reject";
+
+        /**
+         * Update the registered pet with the other values of the new one (e.g. its weight),
+         * keeping its name, breed and gender: insert() returns the URI of the registered pet,
+         * and bulkInsert() counts it.
+         */
+        public static final String ON_DUPLICATE_MERGE = "merge";
+
+        /**
+         * Returns the content URI for the pets that may be the same animal as a pet with the
+         * given name, breed and gender: the pets whose name, breed and gender only differ from
+         * them by case, accents and spaces.
+         */
+        public static Uri buildDuplicatesUri(String name, String breed, int gender) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendPath(PATH_DUPLICATES)
+                    .appendQueryParameter(QUERY_PARAM_NAME, name)
+                    .appendQueryParameter(QUERY_PARAM_GENDER, String.valueOf(gender));
+            if (breed != null) {
+                builder.appendQueryParameter(QUERY_PARAM_BREED, breed);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the given pets URI, with the given {@link #QUERY_PARAM_ON_DUPLICATE} policy.
+         */
+        public static Uri buildInsertUri(Uri uri, String onDuplicate) {
+            return uri.buildUpon().appendQueryParameter(QUERY_PARAM_ON_DUPLICATE, onDuplicate).build();
+        }
+
+        /**
+         * Returns the content URI for the pets list with the given sort order and filters.
+         *
+         * @param sort   one of the SORT_* constants, or null for the default order, by name
+         * @param gender one of the GENDER_* constants, or null to show every gender
+         * @param breed  the exact breed to show, or null to show every breed
+         */
+        public static Uri buildCatalogUri(String sort, Integer gender, String breed) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (sort != null) {
+                builder.appendQueryParameter(QUERY_PARAM_SORT, sort);
+            }
+            if (gender != null) {
+                builder.appendQueryParameter(QUERY_PARAM_GENDER, String.valueOf(gender));
+            }
+            if (breed != null) {
+                builder.appendQueryParameter(QUERY_PARAM_BREED, breed);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the content URI for the alphabetical sections of the given pets list URI,
+         * which must be sorted by name.
+         * <p>
+         * Each row holds the {@link #COLUMN_SECTION} and the {@link #_COUNT} of a section,
+         * in the same order as the pets list, so the position of the first pet of a section
+         * is the sum of the counts of the sections before it.
+         */
+        public static Uri buildSectionsUri(Uri catalogUri) {
+            return catalogUri.buildUpon()
+                    .path(CONTENT_URI.getPath())
+                    .appendPath(PATH_SECTIONS)
+                    .build();
+        }
+
+        /**
+         * Returns the content URI for the pets weighing between minWeight and maxWeight, both
+         * included. The pets are sorted by weight unless a sort order is given, and the URI
+         * accepts the same query parameters as the {@link #CONTENT_URI}.
+         */
+        public static Uri buildWeightRangeUri(int minWeight, int maxWeight) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_WEIGHT)
+                    .appendPath(String.valueOf(minWeight))
+                    .appendPath(String.valueOf(maxWeight))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI for the weight distribution of the pets weighing between
+         * minWeight and maxWeight, both included, in buckets of bucketSize kg.
+         * <p>
+         * Each row holds the {@link #COLUMN_BUCKET_START} and the {@link #_COUNT} of a bucket,
+         * sorted by bucket. Empty buckets are omitted. The URI accepts the same filter
+         * query parameters as the {@link #CONTENT_URI}.
+         */
+        public static Uri buildWeightHistogramUri(int minWeight, int maxWeight, int bucketSize) {
+            return buildWeightRangeUri(minWeight, maxWeight).buildUpon()
+                    .appendPath(PATH_HISTOGRAM)
+                    .appendPath(String.valueOf(bucketSize))
+                    .build();
+        }
+
+        /**
+         * Returns the URI of the photo of the given pet of the {@link PetContract#DEFAULT_SHELTER},
+         * to be opened with {@link ContentResolver#openInputStream(Uri)} or
+         * {@link ContentResolver#openOutputStream(Uri)}, or deleted.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * Same as {@link #buildPhotoUri(long)} for a pet of the given shelter: the ids of the pets
+         * are only unique within their shelter.
+         */
+        public static Uri buildPhotoUri(String shelter, long id) {
+            return buildShelterUri(shelter, buildPhotoUri(id));
+        }
+
+        /**
+         * Query parameter of the backup URI: the sequence number returned with a previous
+         * backup, to only back up the changes made since then.
+         */
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        /**
+         * Returns the URI of the backup of the pets of the given shelter. Opened with
+         * {@link ContentResolver#openInputStream(Uri)} it reads a new backup, full or, with a
+         * sequence number, incremental; opened with {@link ContentResolver#openOutputStream(Uri)}
+         * it restores the backup written to it.
+         *
+         * @param sinceSeq 0 for a full backup
+         */
+        public static Uri buildBackupUri(String shelter, long sinceSeq) {
+            Uri.Builder builder = buildShelterUri(shelter, CONTENT_URI).buildUpon()
+                    .appendPath(PATH_BACKUP);
+            if (sinceSeq > 0) {
+                builder.appendQueryParameter(QUERY_PARAM_SINCE, String.valueOf(sinceSeq));
+            }
+            return builder.build();
+        }
     }
 
 }
@@ -1,8 +1,11 @@
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
@@ -13,43 +16,600 @@ import com.example.android.pets.data.PetContract.PetEntry;
  */
 public class PetDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 8;
+    /**
+     * Database of the default shelter, the file of the app from before the shelters
+     */
     public static final String DATABASE_NAME = "shelter.db";
 
+    private static PetDbHelper sInstance;
+
+    /**
+     * Ids of the pets deleted with an undo window still open, hidden from the queries of
+     * {@link PetProvider} until the deletion is committed or undone
+     */
+    static final String PENDING_DELETES_TABLE = "pending_deletes";
+
+    /**
+     * Column of the pets table holding the {@link PetMatchKey} of each pet, maintained by
+     * {@link PetProvider} and indexed to find the duplicates of a pet.
+     * <p>
+     * Type: TEXT
+     */
+    static final String COLUMN_MATCH_KEY = "match_key";
+
+    /**
+     * Column of the pets table holding the value of the {@link #BACKUP_SEQUENCE_TABLE} when the
+     * pet last changed, so that a backup only holds the pets changed since the previous one.
+     * Maintained by triggers.
+     * <p>
+     * Type: INTEGER
+     */
+    static final String COLUMN_CHANGE_SEQ = "change_seq";
+
+    /**
+     * Single row table counting the changes of the pets table, in its {@link #COLUMN_SEQ} column
+     */
+    static final String BACKUP_SEQUENCE_TABLE = "backup_sequence";
+    static final String COLUMN_SEQ = "seq";
+
+    /**
+     * Ids of the deleted pets, with the {@link #COLUMN_CHANGE_SEQ} of their deletion
+     */
+    static final String BACKUP_TOMBSTONES_TABLE = "backup_tombstones";
+
+    /**
+     * Column of the pets table holding the time the {@link PetEntry#COLUMN_PET_STATUS} of the
+     * pet last changed, in milliseconds since the epoch, maintained by {@link PetProvider}.
+     * <p>
+     * Type: INTEGER
+     */
+    static final String COLUMN_STATUS_CHANGED = "status_changed";
+
+    /**
+     * Pets moved out of the pets table by {@link PetArchive}, with the columns of the pets
+     * table but the match key, and the {@link PetEntry#COLUMN_ARCHIVED} time
+     */
+    static final String ARCHIVE_TABLE = "pets_archive";
+
+    /**
+     * Dictionary of the breeds, each name stored once with an integer id, in its
+     * {@link #COLUMN_BREED_NAME} column. Breeds are only ever added, so their ids never change.
+     */
+    static final String BREEDS_TABLE = "breeds";
+    static final String COLUMN_BREED_NAME = "name";
+
+    /**
+     * Column of the pets table and of the archive holding the id of the breed of each pet in
+     * the {@link #BREEDS_TABLE}, or null if it has none. Read as the breed name, in the
+     * {@link PetEntry#COLUMN_PET_BREED} column, through the {@link #PETS_VIEW} and the
+     * {@link #ARCHIVE_VIEW}.
+     * <p>
+     * Type: INTEGER
+     */
+    public static final String COLUMN_BREED_ID = "breed_id";
+
+    /**
+     * Views of the pets table and of the archive with the name of the breed of each pet, through
+     * which the pets are read. SQLite flattens them into the queries, so that the indexes of the
+     * tables are used as if they were queried directly. They keep the internal columns, read by
+     * the backups and the filters, so the provider never returns them for a null projection.
+     */
+    static final String PETS_VIEW = "pets_view";
+    static final String ARCHIVE_VIEW = "pets_archive_view";
+
+    /**
+     * Prefix and suffix of the name of the database of a shelter other than the default one
+     */
+    private static final String SHELTER_DATABASE_PREFIX = "shelter_";
+    private static final String SHELTER_DATABASE_SUFFIX = ".db";
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Helper of the database with the given name, see {@link #getDatabaseName(String)}
+     */
+    PetDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Returns the name of the database file of the given shelter.
+     */
+    static String getDatabaseName(String shelter) {
+        if (PetContract.DEFAULT_SHELTER.equals(shelter)) {
+            return DATABASE_NAME;
+        }
+        return SHELTER_DATABASE_PREFIX + shelter + SHELTER_DATABASE_SUFFIX;
+    }
+
+    /**
+     * Returns the shelter of the given database file name, or null if it is not the database
+     * of a shelter.
+     */
+    static String getShelter(String databaseName) {
+        if (DATABASE_NAME.equals(databaseName)) {
+            return PetContract.DEFAULT_SHELTER;
+        }
+        if (databaseName.startsWith(SHELTER_DATABASE_PREFIX) && databaseName.endsWith(SHELTER_DATABASE_SUFFIX)) {
+            String shelter = databaseName.substring(SHELTER_DATABASE_PREFIX.length(),
+                    databaseName.length() - SHELTER_DATABASE_SUFFIX.length());
+            return PetContract.isValidShelter(shelter) ? shelter : null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the helper of the default shelter, shared by the whole process, so that the
+     * provider and the background maintenance use the same connection pool instead of
+     * fighting over the database lock. The other shelters are opened through
+     * {@link PetShardManager}.
+     */
+    public static synchronized PetDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Value of PRAGMA auto_vacuum when pages freed by deletes can be given back to the file
+     * system a few at a time, with PRAGMA incremental_vacuum
+     */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Most memory the page cache of a connection can take, read when the database is opened
+     */
+    private volatile long mPageCacheBytes;
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+
+        // The auto_vacuum mode only applies to a database without a single page yet, so it is set
+        // before the write-ahead log writes the first one. Existing databases are switched with a
+        // full VACUUM by the background maintenance.
+        if (!db.isReadOnly() && queryPragma(db, "PRAGMA page_count") == 0) {
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        }
+
+        // Readers no longer wait for writers, and the maintenance can checkpoint the log
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // A positive cache_size is a number of pages, a negative one a number of KiB
+        long cacheSize = queryPragma(db, "PRAGMA cache_size");
+        mPageCacheBytes = cacheSize >= 0 ? cacheSize * queryPragma(db, "PRAGMA page_size") : -cacheSize * 1024;
+    }
+
+    /**
+     * Returns the most memory the page cache of a connection can take, or 0 if the database
+     * was not opened yet.
+     */
+    long getPageCacheBytes() {
+        return mPageCacheBytes;
+    }
+
+    /**
+     * Returns the current PRAGMA auto_vacuum value of the given database
+     */
+    static int getAutoVacuum(SQLiteDatabase db) {
+        return (int) queryPragma(db, "PRAGMA auto_vacuum");
+    }
+
+    /**
+     * Returns the size of the main file of the given database, free pages included
+     */
+    static long getDatabaseBytes(SQLiteDatabase db) {
+        return queryPragma(db, "PRAGMA page_count") * queryPragma(db, "PRAGMA page_size");
+    }
+
+    /**
+     * Switch the given database to incremental vacuum, rewriting the whole file.
+     * Must not be called inside a transaction.
+     */
+    static void enableIncrementalVacuum(SQLiteDatabase db) {
+        Log.i(PetDbHelper.class.getSimpleName(), "Enabling incremental vacuum on " + db.getPath());
+        db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * Run a PRAGMA and return the first column of its first row, or 0 if it returns no rows.
+     * Pragmas returning rows cannot be run through execSQL().
+     */
+    static long queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String SQL_CREATE_PETS_TABLE = buildSchema();
+        createSchema(db);
+    }
+
+    /**
+     * Create the whole schema of the current database version on the given database
+     */
+    static void createSchema(SQLiteDatabase db) {
+        String SQL_CREATE_PETS_TABLE = buildSchema(PetEntry.TABLE_NAME);
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        createCatalogIndexes(db);
+        createPendingDeletesTable(db);
+        createMatchKeyIndex(db);
+        createChangeTracking(db);
+        createArchive(db);
+        createBreedsTable(db);
+        createBreedViews(db);
+    }
+
+    private static void createPendingDeletesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PENDING_DELETES_TABLE + " (" + PetEntry._ID + " INTEGER PRIMARY KEY);");
     }
 
     /**
-     * Create a String that contains the SQL statement to create the pets table
+     * Create a String that contains the SQL statement to create the pets table, with the given name
      */
-    private String buildSchema() {
+    private static String buildSchema(String tableName) {
         StringBuilder sb = new StringBuilder();
         sb.append("CREATE TABLE ");
-        sb.append(PetEntry.TABLE_NAME);
+        sb.append(tableName);
         sb.append(" (");
         sb.append(PetEntry._ID);
         sb.append(" INTEGER PRIMARY KEY AUTOINCREMENT,");
         sb.append(PetEntry.COLUMN_PET_NAME);
         sb.append(" TEXT NOT NULL,");
-        sb.append(PetEntry.COLUMN_PET_BREED);
-        sb.append(" TEXT,");
+        sb.append(COLUMN_BREED_ID);
+        sb.append(" INTEGER,");
         sb.append(PetEntry.COLUMN_PET_GENDER);
         sb.append(" INTEGER NOT NULL,");
         sb.append(PetEntry.COLUMN_PET_WEIGHT);
+        sb.append(" INTEGER NOT NULL DEFAULT 0,");
+        sb.append(PetEntry.COLUMN_PET_PHOTO);
+        sb.append(" INTEGER,");
+        sb.append(COLUMN_MATCH_KEY);
+        sb.append(" TEXT,");
+        sb.append(COLUMN_CHANGE_SEQ);
+        sb.append(" INTEGER NOT NULL DEFAULT 0,");
+        sb.append(PetEntry.COLUMN_PET_STATUS);
+        sb.append(" INTEGER NOT NULL DEFAULT 0,");
+        sb.append(COLUMN_STATUS_CHANGED);
         sb.append(" INTEGER NOT NULL DEFAULT 0);");
         return sb.toString();
     }
 
+    /**
+     * Create the indexes backing the sort orders and filters of the catalog.
+     * <p>
+     * Every index starts with the filtered columns (if any), continues with the sort columns
+     * and ends with the remaining columns of the catalog projection, so that each supported
+     * combination is answered by walking a single covering index in order,
+     * without touching the table and without a temporary sort.
+     */
+    private static void createCatalogIndexes(SQLiteDatabase db) {
+        String name = PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+        String breed = COLUMN_BREED_ID;
+        String gender = PetEntry.COLUMN_PET_GENDER;
+        String weight = PetEntry.COLUMN_PET_WEIGHT;
+        String photo = PetEntry.COLUMN_PET_PHOTO;
+
+        db.execSQL(buildIndex("idx_pets_name", name, breed, photo));
+        db.execSQL(buildIndex("idx_pets_weight", weight, name, breed, photo));
+        db.execSQL(buildIndex("idx_pets_gender_name", gender, name, breed, photo));
+        db.execSQL(buildIndex("idx_pets_gender_weight", gender, weight, name, breed, photo));
+        db.execSQL(buildIndex("idx_pets_breed_name", breed, name, gender, photo));
+        db.execSQL(buildIndex("idx_pets_breed_weight", breed, weight, name, gender, photo));
+    }
+
+    private static void createMatchKeyIndex(SQLiteDatabase db) {
+        db.execSQL(buildIndex("idx_pets_match_key", COLUMN_MATCH_KEY));
+    }
+
+    /**
+     * Compute the match key of the pets matching the given selection, e.g. of every pet of a
+     * database created before the match keys
+     */
+    static void fillMatchKeys(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(PETS_VIEW, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER}, selection, selectionArgs, null, null, null);
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME
+                + " SET " + COLUMN_MATCH_KEY + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            while (cursor.moveToNext()) {
+                update.bindString(1, PetMatchKey.build(cursor.getString(1), cursor.getString(2), cursor.getInt(3)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create the tables and triggers recording which pets changed, and when, for the
+     * incremental backups of {@link PetBackup}. Each insert, update or delete of a pet takes
+     * the next value of the sequence; a deleted pet leaves a tombstone.
+     */
+    private static void createChangeTracking(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BACKUP_SEQUENCE_TABLE + " (" + COLUMN_SEQ + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + BACKUP_SEQUENCE_TABLE + " (" + COLUMN_SEQ + ") VALUES (0);");
+        db.execSQL("CREATE TABLE " + BACKUP_TOMBSTONES_TABLE + " (" + PetEntry._ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_CHANGE_SEQ + " INTEGER NOT NULL);");
+        createChangeSeqIndex(db);
+        db.execSQL("CREATE INDEX idx_backup_tombstones_change_seq ON " + BACKUP_TOMBSTONES_TABLE
+                + " (" + COLUMN_CHANGE_SEQ + ");");
+
+        createTrackingTriggers(db, PetEntry.TABLE_NAME, null);
+    }
+
+    private static void createChangeSeqIndex(SQLiteDatabase db) {
+        db.execSQL(buildIndex("idx_pets_change_seq", COLUMN_CHANGE_SEQ));
+    }
+
+    /**
+     * Create the triggers tracking the changes of the given table: each insert, update or
+     * delete of a pet takes the next value of the sequence, and a deleted pet leaves a
+     * tombstone, unless it is in the other given table.
+     *
+     * @param otherTable the table the pets of the given table can move to, or null
+     */
+    private static void createTrackingTriggers(SQLiteDatabase db, String table, String otherTable) {
+        String nextSeq = "UPDATE " + BACKUP_SEQUENCE_TABLE + " SET " + COLUMN_SEQ + " = " + COLUMN_SEQ + " + 1;";
+        String currentSeq = "(SELECT " + COLUMN_SEQ + " FROM " + BACKUP_SEQUENCE_TABLE + ")";
+        String stampPet = "UPDATE " + table + " SET " + COLUMN_CHANGE_SEQ + " = " + currentSeq
+                + " WHERE " + PetEntry._ID + " = NEW." + PetEntry._ID + ";";
+
+        db.execSQL("CREATE TRIGGER " + table + "_track_insert AFTER INSERT ON " + table + " BEGIN "
+                + nextSeq + stampPet
+                + "DELETE FROM " + BACKUP_TOMBSTONES_TABLE + " WHERE " + PetEntry._ID + " = NEW." + PetEntry._ID + ";"
+                + " END;");
+        // Not fired again by its own stamp, which changes the sequence column
+        db.execSQL("CREATE TRIGGER " + table + "_track_update AFTER UPDATE ON " + table
+                + " WHEN NEW." + COLUMN_CHANGE_SEQ + " = OLD." + COLUMN_CHANGE_SEQ + " BEGIN "
+                + nextSeq + stampPet
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + table + "_track_delete AFTER DELETE ON " + table + " BEGIN "
+                + nextSeq
+                + "INSERT OR REPLACE INTO " + BACKUP_TOMBSTONES_TABLE + " (" + PetEntry._ID + "," + COLUMN_CHANGE_SEQ + ")"
+                + " SELECT OLD." + PetEntry._ID + "," + currentSeq
+                + (otherTable != null ? " WHERE NOT EXISTS (SELECT 1 FROM " + otherTable + " WHERE "
+                + PetEntry._ID + " = OLD." + PetEntry._ID + ")" : "") + ";"
+                + " END;");
+    }
+
+    private static void dropTrackingTriggers(SQLiteDatabase db, String table) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + table + "_track_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS " + table + "_track_update");
+        db.execSQL("DROP TRIGGER IF EXISTS " + table + "_track_delete");
+    }
+
+    /**
+     * Create the archive table, with the same change tracking as the pets table, and the index
+     * through which {@link PetArchive} finds the pets to archive. A pet moved between the two
+     * tables is deleted from one only once it is in the other, so the deletes of the triggers
+     * only leave a tombstone when the pet is in neither table.
+     */
+    private static void createArchive(SQLiteDatabase db) {
+        db.execSQL(buildArchiveSchema(ARCHIVE_TABLE));
+        createArchiveIndexes(db);
+        createStatusIndex(db);
+
+        createTrackingTriggers(db, ARCHIVE_TABLE, PetEntry.TABLE_NAME);
+        // Replace the triggers of createChangeTracking(), which knew nothing of the archive
+        dropTrackingTriggers(db, PetEntry.TABLE_NAME);
+        createTrackingTriggers(db, PetEntry.TABLE_NAME, ARCHIVE_TABLE);
+    }
+
+    private static String buildArchiveSchema(String tableName) {
+        return "CREATE TABLE " + tableName + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY,"
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL,"
+                + COLUMN_BREED_ID + " INTEGER,"
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL,"
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0,"
+                + PetEntry.COLUMN_PET_PHOTO + " INTEGER,"
+                + PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL,"
+                + COLUMN_STATUS_CHANGED + " INTEGER NOT NULL,"
+                + PetEntry.COLUMN_ARCHIVED + " INTEGER NOT NULL,"
+                + COLUMN_CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0);";
+    }
+
+    private static void createArchiveIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_pets_archive_archived ON " + ARCHIVE_TABLE
+                + " (" + PetEntry.COLUMN_ARCHIVED + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_pets_archive_change_seq ON " + ARCHIVE_TABLE
+                + " (" + COLUMN_CHANGE_SEQ + ");");
+    }
+
+    private static void createStatusIndex(SQLiteDatabase db) {
+        db.execSQL(buildIndex("idx_pets_status", PetEntry.COLUMN_PET_STATUS, COLUMN_STATUS_CHANGED));
+    }
+
+    private static void createBreedsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BREEDS_TABLE + " (" + PetEntry._ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);");
+    }
+
+    /**
+     * Create the {@link #PETS_VIEW} and the {@link #ARCHIVE_VIEW}. The pets without a breed are
+     * kept by the outer joins, which also make SQLite walk the pets first, in the order of their
+     * indexes, and look up the breed of each pet by its id.
+     */
+    private static void createBreedViews(SQLiteDatabase db) {
+        for (String[] tableAndView : new String[][]{{PetEntry.TABLE_NAME, PETS_VIEW}, {ARCHIVE_TABLE, ARCHIVE_VIEW}}) {
+            String table = tableAndView[0];
+            db.execSQL("CREATE VIEW " + tableAndView[1] + " AS SELECT " + table + ".*, "
+                    + BREEDS_TABLE + "." + COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED
+                    + " FROM " + table + " LEFT JOIN " + BREEDS_TABLE + " ON " + BREEDS_TABLE + "." + PetEntry._ID
+                    + " = " + table + "." + COLUMN_BREED_ID + ";");
+        }
+    }
+
+    /**
+     * Returns the id of the breed with the given name, adding it to the breeds table if it is
+     * new, for the code writing pets straight to the database, e.g. importers. Must be called
+     * inside the transaction writing the pets.
+     */
+    public static long internBreed(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query(BREEDS_TABLE, new String[]{PetEntry._ID}, COLUMN_BREED_NAME + "=?",
+                new String[]{name}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_BREED_NAME, name);
+        return db.insertOrThrow(BREEDS_TABLE, null, values);
+    }
+
+    /**
+     * Move the breed names of the pets to the breeds table, and rebuild the pets table with
+     * breed ids instead, since SQLite cannot change a column in place. The archive is rebuilt
+     * too if it predates the breeds table.
+     */
+    private static void migrateBreeds(SQLiteDatabase db, boolean archiveHasNames) {
+        String[] tables = archiveHasNames
+                ? new String[]{PetEntry.TABLE_NAME, ARCHIVE_TABLE} : new String[]{PetEntry.TABLE_NAME};
+
+        createBreedsTable(db);
+        for (String table : tables) {
+            db.execSQL("INSERT OR IGNORE INTO " + BREEDS_TABLE + " (" + COLUMN_BREED_NAME + ") SELECT "
+                    + PetEntry.COLUMN_PET_BREED + " FROM " + table + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL");
+        }
+
+        // Dropped first, as they refer to the tables being replaced; the deletes of the
+        // rebuild leave no tombstone, and the pets keep their sequence numbers
+        dropTrackingTriggers(db, PetEntry.TABLE_NAME);
+        dropTrackingTriggers(db, ARCHIVE_TABLE);
+
+        // The ids of the deleted pets must not be reused, their tombstones may be backed up
+        long lastId = 0;
+        Cursor cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?", new String[]{PetEntry.TABLE_NAME});
+        try {
+            if (cursor.moveToFirst()) {
+                lastId = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String table : tables) {
+            String rebuilt = table + "_rebuilt";
+            db.execSQL(PetEntry.TABLE_NAME.equals(table) ? buildSchema(rebuilt) : buildArchiveSchema(rebuilt));
+
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            Cursor info = db.rawQuery("PRAGMA table_info(" + rebuilt + ")", null);
+            try {
+                int nameIndex = info.getColumnIndexOrThrow("name");
+                while (info.moveToNext()) {
+                    String column = info.getString(nameIndex);
+                    columns.append(columns.length() > 0 ? "," : "").append(column);
+                    values.append(values.length() > 0 ? "," : "").append(COLUMN_BREED_ID.equals(column)
+                            ? "(SELECT " + PetEntry._ID + " FROM " + BREEDS_TABLE + " WHERE " + COLUMN_BREED_NAME
+                            + " = " + table + "." + PetEntry.COLUMN_PET_BREED + ")"
+                            : column);
+                }
+            } finally {
+                info.close();
+            }
+            db.execSQL("INSERT INTO " + rebuilt + " (" + columns + ") SELECT " + values + " FROM " + table);
+            db.execSQL("DROP TABLE " + table);
+            db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + table);
+        }
+
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = ?", new Object[]{PetEntry.TABLE_NAME});
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, max(?, ifnull(max(" + PetEntry._ID + "), 0)) FROM "
+                + PetEntry.TABLE_NAME, new Object[]{PetEntry.TABLE_NAME, lastId});
+
+        createBreedViews(db);
+        // Also those of the databases older than the match keys, filled before being indexed
+        fillMatchKeys(db, COLUMN_MATCH_KEY + " IS NULL", null);
+
+        createCatalogIndexes(db);
+        createMatchKeyIndex(db);
+        createChangeSeqIndex(db);
+        createStatusIndex(db);
+        createArchiveIndexes(db);
+        createTrackingTriggers(db, PetEntry.TABLE_NAME, ARCHIVE_TABLE);
+        createTrackingTriggers(db, ARCHIVE_TABLE, PetEntry.TABLE_NAME);
+    }
+
+    /**
+     * Create a String that contains the SQL statement to create an index on the pets table
+     */
+    private static String buildIndex(String indexName, String... columns) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("CREATE INDEX IF NOT EXISTS ");
+        sb.append(indexName);
+        sb.append(" ON ");
+        sb.append(PetEntry.TABLE_NAME);
+        sb.append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(columns[i]);
+        }
+        sb.append(");");
+        return sb.toString();
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Do nothing for now
+        Log.i(PetDbHelper.class.getSimpleName(), "Upgrading " + DATABASE_NAME + " from " + oldVersion + " to " + newVersion);
+
+        // The catalog indexes of the databases older than version 2 are created on the breed
+        // ids, by the rebuild of version 8
+
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + PetEntry.COLUMN_PET_PHOTO + " INTEGER");
+        }
+
+        if (oldVersion < 4) {
+            createPendingDeletesTable(db);
+        }
+
+        if (oldVersion < 5) {
+            // Filled and indexed by the rebuild of version 8, which reads the breeds
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + COLUMN_MATCH_KEY + " TEXT");
+        }
+
+        if (oldVersion < 6) {
+            // The pets already there have sequence 0, which only full backups include
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + COLUMN_CHANGE_SEQ
+                    + " INTEGER NOT NULL DEFAULT 0");
+            createChangeTracking(db);
+        }
+
+        if (oldVersion < 7) {
+            // The pets already there are all available
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + PetEntry.COLUMN_PET_STATUS
+                    + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + COLUMN_STATUS_CHANGED
+                    + " INTEGER NOT NULL DEFAULT 0");
+            createArchive(db);
+        }
+
+        if (oldVersion < 8) {
+            // An archive created by the step above already has breed ids
+            migrateBreeds(db, oldVersion >= 7);
+        }
     }
 
 }
@@ -0,0 +1,270 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+
+/**
+ * Maintenance of the pets databases, one per shelter: moves the pets no longer available to
+ * the archive (see {@link PetArchive}), refreshes the statistics of the query planner, gives
+ * the pages freed by deletes back to the file system and checkpoints the write-ahead log.
+ * <p>
+ * The shelters are maintained one after the other, each database on its own. A run stops between two steps, and between two chunks of the incremental vacuum, as soon as
+ * its time budget is spent or it is cancelled. The outcome of the last run is kept in the
+ * {@link #PREFS_NAME} preferences.
+ */
+public final class PetDbMaintenance {
+
+    private static final String LOG_TAG = PetDbMaintenance.class.getSimpleName();
+
+    /**
+     * Name of the preferences holding the report of the last run
+     */
+    public static final String PREFS_NAME = "db_maintenance";
+
+    /**
+     * Number of free pages given back to the file system by each chunk of the incremental vacuum
+     */
+    private static final int VACUUM_PAGES_PER_CHUNK = 256;
+
+    /**
+     * Oldest SQLite version supporting PRAGMA optimize, as an sqlite_version() number
+     */
+    private static final int SQLITE_OPTIMIZE_VERSION = 3018000;
+
+    /**
+     * Oldest SQLite version supporting PRAGMA wal_checkpoint(TRUNCATE), as an sqlite_version()
+     * number. Older ones, e.g. the 3.8.6 of Android 5.0, fall back to RESTART, after which the
+     * next writer starts the log over from its beginning without shrinking it.
+     */
+    private static final int SQLITE_TRUNCATE_CHECKPOINT_VERSION = 3008008;
+
+    /**
+     * Conservative rate at which a full VACUUM rewrites a database, reading and writing every
+     * page on slow flash. A VACUUM cannot be interrupted, so it only starts when the whole
+     * database can be rewritten at that rate within the budget left.
+     */
+    private static final long VACUUM_BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    private PetDbMaintenance() {
+    }
+
+    /**
+     * Outcome of a maintenance run
+     */
+    public static final class Report {
+        public long bytesBefore;
+        public long bytesAfter;
+        public long archivedPets;
+        public long archiveMillis;
+        public long analyzeMillis;
+        public long vacuumMillis;
+        public long checkpointMillis;
+        public long totalMillis;
+        public long freedPages;
+        public boolean fullVacuum;
+        public boolean fullVacuumSkipped;
+        public boolean completed;
+
+        @Override
+        public String toString() {
+            return "Maintenance " + (completed ? "completed" : "interrupted")
+                    + " in " + totalMillis + " ms: " + bytesBefore + " -> " + bytesAfter + " bytes"
+                    + ", " + archivedPets + " pets archived in " + archiveMillis + " ms"
+                    + ", analyze " + analyzeMillis + " ms"
+                    + ", " + (fullVacuum ? "full" : "incremental") + " vacuum " + vacuumMillis + " ms"
+                    + (fullVacuumSkipped ? ", full vacuum skipped" : "")
+                    + " (" + freedPages + " pages freed)"
+                    + ", checkpoint " + checkpointMillis + " ms";
+        }
+    }
+
+    /**
+     * Run the maintenance of the databases of all the shelters. The report adds up the
+     * shelters, and is only completed if every shelter was.
+     *
+     * @param budgetMillis time after which no new step is started
+     * @param signal       cancels the run before the next step when triggered, may be null
+     */
+    public static Report run(Context context, long budgetMillis, CancellationSignal signal) {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + budgetMillis;
+
+        PetShardManager shardManager = PetShardManager.getInstance(context);
+        Report report = new Report();
+        report.completed = true;
+        for (String shelter : shardManager.listShelters()) {
+            PetShardManager.Shard shard = shardManager.acquire(shelter);
+            if (shard == null) {
+                continue;
+            }
+            try {
+                report.completed &= archive(context, shard, deadline, signal, report);
+                report.completed &= maintain(shard.dbHelper.getWritableDatabase(), deadline, signal, report);
+            } finally {
+                shardManager.release(shard);
+            }
+        }
+
+        report.totalMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, report.toString());
+        saveReport(context, report);
+        return report;
+    }
+
+    /**
+     * Move the pets of the given shard that are due to the archive, one batch after the other,
+     * notifying the pets moved by each batch. Returns whether no pet is left to archive.
+     */
+    private static boolean archive(Context context, PetShardManager.Shard shard, long deadline,
+                                   CancellationSignal signal, Report report) {
+        long stepStart = SystemClock.elapsedRealtime();
+        boolean completed = false;
+        try {
+            SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+            while (canContinue(deadline, signal)) {
+                long[] ids = PetArchive.moveBatch(db, System.currentTimeMillis());
+                if (ids.length > 0) {
+                    report.archivedPets += ids.length;
+                    PetQueryCache.getInstance(context).invalidate(shard.shelter);
+                    context.getContentResolver().notifyChange(PetEntry.buildChangeUri(shard.shelter, ids), null);
+                }
+                if (ids.length < PetArchive.BATCH_PETS) {
+                    completed = true;
+                    break;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Archiving the pets of shelter " + shard.shelter + " failed", e);
+        }
+        report.archiveMillis += SystemClock.elapsedRealtime() - stepStart;
+        return completed;
+    }
+
+    /**
+     * Maintain a single database, adding its figures to the given report. Returns whether
+     * every step completed.
+     */
+    private static boolean maintain(SQLiteDatabase db, long deadline, CancellationSignal signal, Report report) {
+        boolean completed = false;
+        report.bytesBefore += getFileBytes(db);
+
+        try {
+            // Refresh the statistics the query planner uses to pick the catalog indexes
+            if (canContinue(deadline, signal)) {
+                long stepStart = SystemClock.elapsedRealtime();
+                if (getSqliteVersion(db) >= SQLITE_OPTIMIZE_VERSION) {
+                    PetDbHelper.queryPragma(db, "PRAGMA optimize");
+                } else {
+                    db.execSQL("ANALYZE");
+                }
+                report.analyzeMillis += SystemClock.elapsedRealtime() - stepStart;
+            }
+
+            // Give free pages back to the file system, converting the database first if needed
+            long stepStart = SystemClock.elapsedRealtime();
+            if (canContinue(deadline, signal)
+                    && PetDbHelper.getAutoVacuum(db) != PetDbHelper.AUTO_VACUUM_INCREMENTAL) {
+                long estimatedMillis = PetDbHelper.getDatabaseBytes(db) * 1000 / VACUUM_BYTES_PER_SECOND;
+                if (SystemClock.elapsedRealtime() + estimatedMillis < deadline) {
+                    PetDbHelper.enableIncrementalVacuum(db);
+                    report.fullVacuum = true;
+                } else {
+                    // Left for a run with more budget left, the incremental vacuum below frees nothing
+                    Log.i(LOG_TAG, "Not converting " + db.getPath() + ", its full vacuum would take about "
+                            + estimatedMillis + " ms");
+                    report.fullVacuumSkipped = true;
+                }
+            }
+            long freePages = PetDbHelper.queryPragma(db, "PRAGMA freelist_count");
+            while (freePages > 0 && canContinue(deadline, signal)) {
+                PetDbHelper.queryPragma(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_CHUNK + ")");
+                long remainingPages = PetDbHelper.queryPragma(db, "PRAGMA freelist_count");
+                if (remainingPages >= freePages) {
+                    // Not in incremental mode, nothing more can be freed
+                    break;
+                }
+                report.freedPages += freePages - remainingPages;
+                freePages = remainingPages;
+            }
+            report.vacuumMillis += SystemClock.elapsedRealtime() - stepStart;
+
+            // Move the write-ahead log back into the database and shrink it
+            if (canContinue(deadline, signal)) {
+                stepStart = SystemClock.elapsedRealtime();
+                String mode = getSqliteVersion(db) >= SQLITE_TRUNCATE_CHECKPOINT_VERSION ? "TRUNCATE" : "RESTART";
+                PetDbHelper.queryPragma(db, "PRAGMA wal_checkpoint(" + mode + ")");
+                report.checkpointMillis += SystemClock.elapsedRealtime() - stepStart;
+                completed = freePages == 0;
+            }
+        } catch (SQLiteException e) {
+            // E.g. the database was busy, the next run will try again
+            Log.e(LOG_TAG, "Maintenance of " + db.getPath() + " failed", e);
+        }
+
+        report.bytesAfter += getFileBytes(db);
+        return completed;
+    }
+
+    private static boolean canContinue(long deadline, CancellationSignal signal) {
+        return SystemClock.elapsedRealtime() < deadline && (signal == null || !signal.isCanceled());
+    }
+
+    /**
+     * Returns the size on disk of the given database, write-ahead log included
+     */
+    private static long getFileBytes(SQLiteDatabase db) {
+        return new File(db.getPath()).length() + new File(db.getPath() + "-wal").length();
+    }
+
+    /**
+     * Returns the version of SQLite as a number, e.g. 3019004 for 3.19.4
+     */
+    private static int getSqliteVersion(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT sqlite_version()", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            String[] parts = cursor.getString(0).split("\\.");
+            int version = 0;
+            for (int i = 0; i < 3; i++) {
+                version = version * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+            }
+            return version;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void saveReport(Context context, Report report) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+                .putLong("last_run", System.currentTimeMillis())
+                .putLong("bytes_before", report.bytesBefore)
+                .putLong("bytes_after", report.bytesAfter)
+                .putLong("archived_pets", report.archivedPets)
+                .putLong("archive_millis", report.archiveMillis)
+                .putLong("analyze_millis", report.analyzeMillis)
+                .putLong("vacuum_millis", report.vacuumMillis)
+                .putLong("checkpoint_millis", report.checkpointMillis)
+                .putLong("total_millis", report.totalMillis)
+                .putLong("freed_pages", report.freedPages)
+                .putBoolean("full_vacuum", report.fullVacuum)
+                .putBoolean("full_vacuum_skipped", report.fullVacuumSkipped)
+                .putBoolean("completed", report.completed)
+                .apply();
+    }
+
+}
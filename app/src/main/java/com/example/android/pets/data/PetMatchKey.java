@@ -0,0 +1,47 @@
+package com.example.android.pets.data;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the key under which two registrations of the same animal match: the name and the breed
+ * folded to lower case and stripped of their accents and extra spaces, and the gender.
+ * <p>
+ * The key is stored in the {@link PetDbHelper#COLUMN_MATCH_KEY} column by {@link PetProvider},
+ * whose index finds the duplicates of a pet with a single lookup.
+ */
+final class PetMatchKey {
+
+    /**
+     * Combining marks left by the canonical decomposition of accented letters
+     */
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    /**
+     * Separates the parts of a key, and cannot be typed in a name or a breed
+     */
+    private static final char SEPARATOR = '\u001f';
+
+    private PetMatchKey() {
+    }
+
+    static String build(String name, String breed, int gender) {
+        return fold(name) + SEPARATOR + fold(breed) + SEPARATOR + gender;
+    }
+
+    /**
+     * Returns the given text in lower case, without accents and with single spaces between words.
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        String unaccented = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        return SPACES.matcher(unaccented.toLowerCase(Locale.ROOT).trim()).replaceAll(" ");
+    }
+
+}
@@ -0,0 +1,258 @@
+package com.example.android.pets.data;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of the memory held by the app's data (SQLite's page cache, the results of
+ * off-screen lists, caches...) and releases it when the system runs low on memory, or when
+ * it grows past the budget of the app.
+ * <p>
+ * Each holder of memory registers a {@link Consumer} with a priority. When memory must be
+ * released, the consumers are trimmed in priority order, and the higher the trim level the
+ * more consumers are involved:
+ * <ul>
+ * <li>{@link #PRIORITY_SQLITE}: the SQLite page cache, cheap to fill again, released first;</li>
+ * <li>{@link #PRIORITY_OFF_SCREEN}: the data of screens the user can't see, released when
+ * memory runs low or the UI is hidden;</li>
+ * <li>{@link #PRIORITY_CACHE}: caches, only cleared when memory is critical or the app is in
+ * the background.</li>
+ * </ul>
+ * All the methods but {@link #dump(PrintWriter)} must be called on the main thread, where the
+ * consumers are trimmed.
+ */
+public final class PetMemoryBudget implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = PetMemoryBudget.class.getSimpleName();
+
+    public static final int PRIORITY_SQLITE = 0;
+    public static final int PRIORITY_OFF_SCREEN = 1;
+    public static final int PRIORITY_CACHE = 2;
+
+    /**
+     * Something that holds memory which can be released
+     */
+    public interface Consumer {
+
+        /**
+         * Returns a short name for the diagnostics.
+         */
+        String getName();
+
+        /**
+         * Returns an estimate of the memory held, in bytes.
+         */
+        long getMemoryUsage();
+
+        /**
+         * Release memory as appropriate for the given level, one of the TRIM_MEMORY_*
+         * constants of {@link ComponentCallbacks2}. Returns the bytes released.
+         */
+        long trimMemory(int level);
+    }
+
+    private static PetMemoryBudget sInstance;
+
+    /**
+     * Consumers in trim order. Copied on write, so that the diagnostics can be dumped
+     * from any thread.
+     */
+    private final List<Entry> mEntries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Memory the data of the app should stay within, in bytes
+     */
+    private final long mLimitBytes;
+
+    private volatile int mLastTrimLevel = -1;
+    private volatile long mLastReleasedBytes;
+
+    private PetMemoryBudget(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        // Leave most of the heap to the views and bitmaps, even more so on low-RAM devices
+        mLimitBytes = heapBytes / (activityManager.isLowRamDevice() ? 8 : 4);
+
+        register(new SqliteConsumer(PetDbHelper.getInstance(context)), PRIORITY_SQLITE);
+    }
+
+    public static synchronized PetMemoryBudget getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new PetMemoryBudget(appContext);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start tracking the given consumer, trimmed after the consumers of lower priority.
+     */
+    public void register(Consumer consumer, int priority) {
+        // Consumers of the same priority are trimmed in registration order
+        int index = 0;
+        while (index < mEntries.size() && mEntries.get(index).mPriority <= priority) {
+            index++;
+        }
+        mEntries.add(index, new Entry(consumer, priority));
+    }
+
+    public void unregister(Consumer consumer) {
+        for (Entry entry : mEntries) {
+            if (entry.mConsumer == consumer) {
+                mEntries.remove(entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the memory held by all the consumers, in bytes.
+     */
+    public long getUsage() {
+        long usage = 0;
+        for (Entry entry : mEntries) {
+            usage += entry.mConsumer.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    public long getLimit() {
+        return mLimitBytes;
+    }
+
+    /**
+     * Release memory if the consumers went over the budget. Called by the consumers
+     * after they grew.
+     */
+    public void checkBudget() {
+        long usage = getUsage();
+        if (usage <= mLimitBytes) {
+            return;
+        }
+        Log.i(LOG_TAG, "Over budget, " + usage + " of " + mLimitBytes + " bytes used");
+        // Stop as soon as the usage is back within the budget
+        long released = 0;
+        for (Entry entry : mEntries) {
+            if (usage - released <= mLimitBytes) {
+                break;
+            }
+            long consumerReleased = entry.mConsumer.trimMemory(TRIM_MEMORY_RUNNING_LOW);
+            entry.mReleasedBytes += consumerReleased;
+            released += consumerReleased;
+        }
+    }
+
+    /**
+     * Release memory as appropriate for the given level, one of the TRIM_MEMORY_* constants
+     * of {@link ComponentCallbacks2}. Returns the bytes released.
+     */
+    public long trim(int level) {
+        int maxPriority = getMaxPriority(level);
+        long released = 0;
+        for (Entry entry : mEntries) {
+            if (entry.mPriority > maxPriority) {
+                break;
+            }
+            long consumerReleased = entry.mConsumer.trimMemory(level);
+            entry.mReleasedBytes += consumerReleased;
+            released += consumerReleased;
+        }
+        mLastTrimLevel = level;
+        mLastReleasedBytes = released;
+        Log.i(LOG_TAG, "Trim level " + level + " released " + released + " bytes");
+        return released;
+    }
+
+    /**
+     * Returns the priority of the last consumers to trim at the given level.
+     */
+    private static int getMaxPriority(int level) {
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            return PRIORITY_OFF_SCREEN;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Running critical, or in the background and on the list of processes to kill
+            return PRIORITY_CACHE;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return PRIORITY_OFF_SCREEN;
+        }
+        return PRIORITY_SQLITE;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        trim(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    /**
+     * Write the usage of each consumer, for the diagnostics.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Memory budget: " + getUsage() + " of " + mLimitBytes + " bytes used");
+        for (Entry entry : mEntries) {
+            writer.println("  " + entry.mConsumer.getName() + " (priority " + entry.mPriority + "): "
+                    + entry.mConsumer.getMemoryUsage() + " bytes, " + entry.mReleasedBytes + " released so far");
+        }
+        if (mLastTrimLevel >= 0) {
+            writer.println("  last trim: level " + mLastTrimLevel + ", " + mLastReleasedBytes + " bytes released");
+        }
+    }
+
+    private static final class Entry {
+
+        private final Consumer mConsumer;
+        private final int mPriority;
+        private long mReleasedBytes;
+
+        private Entry(Consumer consumer, int priority) {
+            mConsumer = consumer;
+            mPriority = priority;
+        }
+    }
+
+    /**
+     * The page cache of SQLite, shared by all the connections of the process
+     */
+    private static final class SqliteConsumer implements Consumer {
+
+        private final PetDbHelper mDbHelper;
+
+        private SqliteConsumer(PetDbHelper dbHelper) {
+            mDbHelper = dbHelper;
+        }
+
+        @Override
+        public String getName() {
+            return "sqlite page cache (at most)";
+        }
+
+        @Override
+        public long getMemoryUsage() {
+            return mDbHelper.getPageCacheBytes();
+        }
+
+        @Override
+        public long trimMemory(int level) {
+            return SQLiteDatabase.releaseMemory();
+        }
+    }
+
+}
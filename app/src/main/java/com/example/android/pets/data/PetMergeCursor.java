@@ -0,0 +1,287 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rows of the same query run on several shelters, merged in the order of the query. Each row
+ * carries the {@link PetEntry#COLUMN_SHELTER} it comes from.
+ * <p>
+ * Each shelter's cursor is already sorted by SQLite, so the merged order is computed once,
+ * when the cursor is created, by merging the sorted cursors. Closing the merged cursor closes
+ * the cursors of the shelters.
+ */
+final class PetMergeCursor extends AbstractCursor {
+
+    private final Cursor[] mCursors;
+    private final String[] mShelters;
+    private final String[] mColumnNames;
+
+    /**
+     * Index of the {@link PetEntry#COLUMN_SHELTER} column, the last one
+     */
+    private final int mShelterColumn;
+
+    /**
+     * Cursor and position in that cursor of each row of the merged cursor
+     */
+    private final int[] mRowCursors;
+    private final int[] mRowPositions;
+
+    private Cursor mCursor;
+
+    /**
+     * @param cursors   sorted cursors with the same columns, one per shelter
+     * @param shelters  shelter of each cursor
+     * @param sortOrder the ORDER BY clause the cursors are sorted by, one of the whitelisted
+     *                  clauses of {@link PetCatalogQuery}, or null to keep the rows of each
+     *                  shelter together
+     */
+    PetMergeCursor(Cursor[] cursors, String[] shelters, String sortOrder) {
+        mCursors = cursors;
+        mShelters = shelters;
+
+        String[] columns = cursors.length > 0 ? cursors[0].getColumnNames() : new String[0];
+        mColumnNames = Arrays.copyOf(columns, columns.length + 1);
+        mShelterColumn = columns.length;
+        mColumnNames[mShelterColumn] = PetEntry.COLUMN_SHELTER;
+
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += cursor.getCount();
+        }
+        mRowCursors = new int[count];
+        mRowPositions = new int[count];
+        merge(parseSortTerms(sortOrder));
+    }
+
+    /**
+     * Term of an ORDER BY clause
+     */
+    private static final class SortTerm {
+
+        private final int mColumn;
+        private final boolean mNoCase;
+        private final boolean mDescending;
+
+        private SortTerm(int column, boolean noCase, boolean descending) {
+            mColumn = column;
+            mNoCase = noCase;
+            mDescending = descending;
+        }
+    }
+
+    /**
+     * Parse one of the whitelisted ORDER BY clauses, e.g. "weight ASC,name COLLATE NOCASE ASC".
+     */
+    private List<SortTerm> parseSortTerms(String sortOrder) {
+        List<SortTerm> terms = new ArrayList<>();
+        if (sortOrder == null) {
+            return terms;
+        }
+        for (String term : sortOrder.split(",")) {
+            String[] words = term.trim().split("\\s+");
+            int column = Arrays.asList(mColumnNames).indexOf(words[0]);
+            if (column < 0) {
+                throw new IllegalArgumentException("Sort column " + words[0] + " is not in the projection");
+            }
+            String upperTerm = term.toUpperCase(Locale.US);
+            terms.add(new SortTerm(column, upperTerm.contains("COLLATE NOCASE"), upperTerm.trim().endsWith(" DESC")));
+        }
+        return terms;
+    }
+
+    /**
+     * Fill the rows of the merged cursor by repeatedly taking the first of the current rows
+     * of the cursors. There are only a few shelters, so the first row is looked for linearly.
+     */
+    private void merge(List<SortTerm> terms) {
+        int[] positions = new int[mCursors.length];
+        for (int row = 0; row < mRowCursors.length; row++) {
+            int first = -1;
+            for (int i = 0; i < mCursors.length; i++) {
+                if (positions[i] >= mCursors[i].getCount()) {
+                    continue;
+                }
+                mCursors[i].moveToPosition(positions[i]);
+                // Ties keep the order of the shelters, so the merge is stable
+                if (first < 0 || compare(mCursors[i], mCursors[first], terms) < 0) {
+                    first = i;
+                }
+            }
+            mRowCursors[row] = first;
+            mRowPositions[row] = positions[first];
+            positions[first]++;
+        }
+    }
+
+    /**
+     * Compare the current rows of the given cursors the way SQLite sorts them.
+     */
+    private static int compare(Cursor a, Cursor b, List<SortTerm> terms) {
+        for (SortTerm term : terms) {
+            int result = compareValues(a, b, term);
+            if (result != 0) {
+                return term.mDescending ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareValues(Cursor a, Cursor b, SortTerm term) {
+        int typeA = a.getType(term.mColumn);
+        int typeB = b.getType(term.mColumn);
+        // NULL first, then numbers, then text, as in SQLite
+        if (typeA != typeB) {
+            return Integer.compare(typeRank(typeA), typeRank(typeB));
+        }
+        switch (typeA) {
+            case FIELD_TYPE_NULL:
+                return 0;
+            case FIELD_TYPE_INTEGER:
+                return Long.compare(a.getLong(term.mColumn), b.getLong(term.mColumn));
+            case FIELD_TYPE_FLOAT:
+                return Double.compare(a.getDouble(term.mColumn), b.getDouble(term.mColumn));
+            default:
+                String valueA = a.getString(term.mColumn);
+                String valueB = b.getString(term.mColumn);
+                return term.mNoCase ? compareNoCase(valueA, valueB) : valueA.compareTo(valueB);
+        }
+    }
+
+    private static int typeRank(int type) {
+        switch (type) {
+            case FIELD_TYPE_NULL:
+                return 0;
+            case FIELD_TYPE_INTEGER:
+            case FIELD_TYPE_FLOAT:
+                return 1;
+            case FIELD_TYPE_STRING:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Same as SQLite's NOCASE collation, which only folds the case of ASCII letters.
+     */
+    private static int compareNoCase(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char c1 = foldAscii(a.charAt(i));
+            char c2 = foldAscii(b.charAt(i));
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private static char foldAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCursor = mCursors[mRowCursors[newPosition]];
+        return mCursor.moveToPosition(mRowPositions[newPosition]);
+    }
+
+    @Override
+    public int getCount() {
+        return mRowCursors.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        if (column == mShelterColumn) {
+            return FIELD_TYPE_STRING;
+        }
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        if (column == mShelterColumn) {
+            return mShelters[mRowCursors[mPos]];
+        }
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        checkPosition();
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        checkPosition();
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        checkPosition();
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        checkPosition();
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        checkPosition();
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        if (column == mShelterColumn) {
+            return false;
+        }
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor cursor : mCursors) {
+            cursor.deactivate();
+        }
+        super.deactivate();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+        super.close();
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Deletes pets with an undo window: the pets disappear at once, and are only removed from the
+ * database when the window expires, or when {@link #commit()} is called, e.g. as the app goes
+ * to the background.
+ * <p>
+ * There is at most one undo window at a time, so a new delete first commits the previous one.
+ * All the methods must be called on the main thread.
+ */
+public final class PetPendingDeletes {
+
+    private static final String LOG_TAG = PetPendingDeletes.class.getSimpleName();
+
+    /**
+     * Time during which a delete can be undone
+     */
+    public static final long UNDO_WINDOW_MILLIS = 5000;
+
+    private static PetPendingDeletes sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    /**
+     * Shelter and number of the pets of the open undo window, if any
+     */
+    private String mShelter;
+    private int mPendingCount;
+
+    /**
+     * End of the open undo window, in {@link SystemClock#uptimeMillis()} time
+     */
+    private long mDeadline;
+
+    private PetPendingDeletes(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    public static synchronized PetPendingDeletes getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetPendingDeletes(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Delete the pets of the given pets or single pet URI matching the selection, opening an
+     * undo window. Returns the number of pets deleted.
+     */
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        commit();
+
+        int rows = mResolver.delete(PetEntry.buildDeferredDeleteUri(uri), selection, selectionArgs);
+        openWindow(PetContract.getShelter(uri), rows);
+        return rows;
+    }
+
+    /**
+     * Returns the extras of a {@link PetEntry#METHOD_BULK_DELETE} of the given pets of the given
+     * shelter that can be undone, committing the previous delete first. The call can run off the
+     * main thread, and must be followed by {@link #onBulkDeleted(String, int)}.
+     */
+    public Bundle prepareBulkDelete(String shelter, long[] ids) {
+        commit();
+
+        Bundle extras = new Bundle();
+        extras.putString(PetEntry.EXTRA_SHELTER, shelter);
+        extras.putLongArray(PetEntry.EXTRA_IDS, ids);
+        extras.putBoolean(PetEntry.EXTRA_DEFERRED, true);
+        return extras;
+    }
+
+    /**
+     * Open the undo window of a bulk delete prepared by {@link #prepareBulkDelete(String, long[])},
+     * once it has hidden the given number of pets.
+     */
+    public void onBulkDeleted(String shelter, int rows) {
+        if (mPendingCount > 0 && shelter.equals(mShelter)) {
+            // A delete made while the bulk one ran: both are undone together by the shelter
+            mPendingCount += rows;
+            return;
+        }
+        commit();
+        openWindow(shelter, rows);
+    }
+
+    private void openWindow(String shelter, int rows) {
+        if (rows > 0) {
+            mShelter = shelter;
+            mPendingCount = rows;
+            mDeadline = SystemClock.uptimeMillis() + UNDO_WINDOW_MILLIS;
+            mHandler.postAtTime(mCommitRunnable, mDeadline);
+        }
+    }
+
+    /**
+     * Returns the number of pets that can still be restored, 0 if there is no undo window.
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * Returns the time left to undo the pending delete.
+     */
+    public long getRemainingMillis() {
+        return mPendingCount > 0 ? Math.max(0, mDeadline - SystemClock.uptimeMillis()) : 0;
+    }
+
+    /**
+     * Restore the pets of the open undo window. Returns whether any pet was restored.
+     */
+    public boolean undo() {
+        if (mPendingCount == 0) {
+            return false;
+        }
+        return callProvider(PetEntry.METHOD_UNDO_DELETES) > 0;
+    }
+
+    /**
+     * Close the undo window, removing its pets from the database in a single transaction.
+     */
+    public void commit() {
+        if (mPendingCount > 0) {
+            callProvider(PetEntry.METHOD_COMMIT_DELETES);
+        }
+    }
+
+    private int callProvider(String method) {
+        mHandler.removeCallbacks(mCommitRunnable);
+        Bundle extras = new Bundle();
+        extras.putString(PetEntry.EXTRA_SHELTER, mShelter);
+        mPendingCount = 0;
+        mShelter = null;
+
+        try {
+            Bundle result = mResolver.call(PetEntry.CONTENT_URI, method, null, extras);
+            return result != null ? result.getInt(PetEntry.EXTRA_ROW_COUNT) : 0;
+        } catch (RuntimeException e) {
+            // Left pending, committed with the next commit of the shelter or when the app next starts
+            Log.e(LOG_TAG, "Call of " + method + " failed", e);
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Files of the pet photos, one JPEG per pet named after its {@link PetEntry#_ID}, in the
+ * private storage of the app.
+ */
+final class PetPhotoStore {
+
+    private static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    private static final String PHOTO_DIRECTORY = "photos";
+    private static final String PHOTO_EXTENSION = ".jpg";
+
+    /**
+     * Extension of a photo being written, renamed to the photo once complete
+     */
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final File mDirectory;
+
+    /**
+     * Store of the photos of the given shelter, each shelter having a directory of its own
+     */
+    PetPhotoStore(Context context, String shelter) {
+        String directory = PetContract.DEFAULT_SHELTER.equals(shelter) ? PHOTO_DIRECTORY : PHOTO_DIRECTORY + "_" + shelter;
+        mDirectory = new File(context.getFilesDir(), directory);
+    }
+
+    File getPhotoFile(long id) {
+        return new File(mDirectory, id + PHOTO_EXTENSION);
+    }
+
+    /**
+     * Returns the file a new photo of the given pet is written to, in the same directory as
+     * the photo so that it can be renamed to it.
+     */
+    File getTempFile(long id) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Cannot create " + mDirectory);
+        }
+        return new File(mDirectory, id + PHOTO_EXTENSION + TEMP_EXTENSION);
+    }
+
+    /**
+     * Delete the photos of the given pets, if they have any.
+     */
+    void delete(long[] ids) {
+        for (long id : ids) {
+            File file = getPhotoFile(id);
+            if (file.exists() && !file.delete()) {
+                Log.w(LOG_TAG, "Cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete the photos, and the leftovers of interrupted writes, of the pets that are not in
+     * the given database anymore.
+     */
+    void deleteOrphans(SQLiteDatabase db) {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        // The archived pets keep their photos
+        Set<Long> ids = new HashSet<>();
+        for (String table : new String[]{PetEntry.TABLE_NAME, PetDbHelper.ARCHIVE_TABLE}) {
+            Cursor cursor = db.query(table, new String[]{PetEntry._ID},
+                    PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            boolean orphan;
+            if (name.endsWith(PHOTO_EXTENSION)) {
+                try {
+                    orphan = !ids.contains(Long.parseLong(name.substring(0, name.length() - PHOTO_EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    orphan = true;
+                }
+            } else {
+                // Temporary files older than a day belong to writes that never completed
+                orphan = System.currentTimeMillis() - file.lastModified() > 24 * 60 * 60 * 1000L;
+            }
+            if (orphan && !file.delete()) {
+                Log.w(LOG_TAG, "Cannot delete " + file);
+            }
+        }
+    }
+
+}
@@ -4,15 +4,48 @@ import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
+import android.database.CrossProcessCursorWrapper;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetShardManager.Shard;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by hjalmar
@@ -30,6 +63,42 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PET_ID = 101;
 
+    /**
+     * URI matcher code for the content URI for the pets in a weight range
+     */
+    private static final int WEIGHT_RANGE = 102;
+
+    /**
+     * URI matcher code for the content URI for the weight histogram of the pets in a weight range
+     */
+    private static final int WEIGHT_HISTOGRAM = 103;
+
+    /**
+     * URI matcher code for the content URI for the alphabetical sections of the pets list
+     */
+    private static final int SECTIONS = 104;
+
+    /**
+     * URI matcher code for the content URI for the photo of a single pet
+     */
+    private static final int PET_PHOTO = 105;
+
+    /**
+     * URI matcher code for the content URI for the possible duplicates of a new pet
+     */
+    private static final int DUPLICATES = 106;
+
+    /**
+     * URI matcher code for the content URI for the backup of the pets
+     */
+    private static final int BACKUP = 107;
+
+    /**
+     * URI matcher codes for the content URIs for the archived pets, and for a single archived pet
+     */
+    private static final int ARCHIVE = 108;
+    private static final int ARCHIVE_ID = 109;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -45,37 +114,171 @@ public class PetProvider extends ContentProvider {
 
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_WEIGHT + "/#/#", WEIGHT_RANGE);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_WEIGHT + "/#/#/" + PetContract.PATH_HISTOGRAM + "/#", WEIGHT_HISTOGRAM);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_SECTIONS, SECTIONS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_DUPLICATES, DUPLICATES);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_BACKUP, BACKUP);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_ARCHIVE, ARCHIVE);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/" + PetContract.PATH_ARCHIVE + "/#", ARCHIVE_ID);
 
     }
 
-    private PetDbHelper mDbHelper;
+    /**
+     * Databases and photos of the shelters. The URIs are matched without their shelter prefix
+     * (see {@link PetContract#withoutShelter(Uri)}), and each operation runs on the shard of the
+     * shelter of its URI.
+     */
+    private PetShardManager mShardManager;
+
+    /**
+     * Results of the pets list queries, shared by the identical queries until the next write
+     * of their shelter
+     */
+    private PetQueryCache mQueryCache;
+
+    /**
+     * Runs the query of each shelter of a query across all the shelters, created when first needed
+     */
+    private ExecutorService mShelterQueryExecutor;
+
+    /**
+     * Shelters which may have pets whose deletion is pending, see
+     * {@link PetEntry#buildDeferredDeleteUri(Uri)}. The queries of the other shelters do not
+     * need to hide anything. Only changed with the {@link #mPendingDeletesLock} held.
+     */
+    private final Set<String> mPendingDeleteShelters =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Shelters whose deletions left pending by a previous run of the app were committed
+     */
+    private final Set<String> mCheckedShelters =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Serializes the deferred deletes with their commits and undos, so that
+     * {@link #mPendingDeleteShelters} always follows the pending deletes table
+     */
+    private final Object mPendingDeletesLock = new Object();
+
+    /**
+     * Handler of the thread that completes the writes of photos, created when first needed
+     */
+    private Handler mPhotoHandler;
+
+    /**
+     * Handler of the thread that writes and restores the backups, created when first needed
+     */
+    private Handler mBackupHandler;
 
     /**
      * Tag for the log messages
      */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
+    /**
+     * Above this number of ids, the pets of a bulk operation are selected through
+     * {@link #SELECTED_IDS_TABLE} rather than through an IN list.
+     */
+    private static final int MAX_IN_LIST_IDS = 200;
+
+    /**
+     * Above this number of changed pets, change notifications do not list their ids
+     */
+    private static final int MAX_REPORTED_IDS = 500;
+
+    /**
+     * Temporary table holding the ids of the pets of a large bulk operation
+     */
+    private static final String SELECTED_IDS_TABLE = "temp.selected_ids";
+
+    /**
+     * Query parameter of a pets list URI, set to "true" to query the database rather than the
+     * {@link #mQueryCache}. Used by the one-off queries of the app, such as the probes of
+     * {@link PetWatcher}, which would only push the results worth keeping out of the cache.
+     */
+    static final String QUERY_PARAM_UNCACHED = "uncached";
+
+    /**
+     * Default projection of the queries of pets: the columns of the contract, without the
+     * internal columns of the views such as the breed id and the match key.
+     */
+    private static final String[] PET_PROJECTION = new String[]{
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_PHOTO, PetEntry.COLUMN_PET_STATUS};
+
+    /**
+     * Default projection of the queries of the archive, the {@link #PET_PROJECTION} and the time
+     * each pet was archived
+     */
+    private static final String[] ARCHIVE_PROJECTION = new String[]{
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_PHOTO, PetEntry.COLUMN_PET_STATUS,
+            PetEntry.COLUMN_ARCHIVED};
+
+    /**
+     * Default projection of the weight range queries. All of its columns are stored in the weight
+     * index, so a weight range is read from the index alone.
+     */
+    private static final String[] WEIGHT_RANGE_PROJECTION = new String[]{
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_WEIGHT};
+
     /**
      * Initialize the provider and the database helper object.
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        mShardManager = PetShardManager.getInstance(getContext());
+        mQueryCache = PetQueryCache.getInstance(getContext());
+
+        // Start tracking the memory of the data as soon as the process starts
+        PetMemoryBudget.getInstance(getContext());
+
         return true;
     }
 
+    /**
+     * Write the diagnostics of the data layer, shown by
+     * adb shell dumpsys activity provider com.example.android.pets/.data.PetProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PetMemoryBudget.getInstance(getContext()).dump(writer);
+        mQueryCache.dump(writer);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
-        int match = sUriMatcher.match(uri);
+        int match = sUriMatcher.match(PetContract.withoutShelter(uri));
         switch (match) {
             case PETS:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case WEIGHT_RANGE:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case WEIGHT_HISTOGRAM:
+                return PetEntry.CONTENT_HISTOGRAM_TYPE;
+            case SECTIONS:
+                return PetEntry.CONTENT_SECTIONS_TYPE;
+            case PET_PHOTO:
+                return PetEntry.PHOTO_TYPE;
+            case DUPLICATES:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case BACKUP:
+                return PetEntry.BACKUP_TYPE;
+            case ARCHIVE:
+                return PetEntry.ARCHIVE_LIST_TYPE;
+            case ARCHIVE_ID:
+                return PetEntry.ARCHIVE_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -87,10 +290,15 @@ public class PetProvider extends ContentProvider {
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
-        int match = sUriMatcher.match(uri);
+        int match = sUriMatcher.match(PetContract.withoutShelter(uri));
         switch (match) {
             case PETS:
-                return insertPet(uri, values);
+                Shard shard = mShardManager.acquireOrCreate(PetContract.getShelter(uri));
+                try {
+                    return insertPet(shard, uri, values);
+                } finally {
+                    mShardManager.release(shard);
+                }
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -100,7 +308,81 @@ public class PetProvider extends ContentProvider {
      * Insert a pet into the database with the given content values. Return the new content URI
      * for that specific row in the database.
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
+    private Uri insertPet(Shard shard, Uri uri, ContentValues values) {
+
+        validateInsert(values);
+        String onDuplicate = getOnDuplicate(uri);
+
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        long newId;
+        // The lookup of the duplicates and the insert must not interleave with another insert
+        db.beginTransaction();
+        try {
+            newId = insertOrMerge(shard, db, values, onDuplicate);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (newId == -1) {
+            Log.e(LOG_TAG, "Insertion of new pet failed or was rejected for Uri " + uri);
+            return null;
+        }
+
+        notifyPetsChanged(shard.shelter, new long[]{newId});
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri.buildUpon().clearQuery().build(), newId);
+    }
+
+    /**
+     * Insert all the given pets in a single transaction, applying the
+     * {@link PetEntry#QUERY_PARAM_ON_DUPLICATE} policy of the URI to each of them, including
+     * against the pets inserted before them. Return the number of pets inserted or merged.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (sUriMatcher.match(PetContract.withoutShelter(uri)) != PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+        // Nothing is written if any of the pets is not valid
+        for (ContentValues petValues : values) {
+            validateInsert(petValues);
+        }
+        String onDuplicate = getOnDuplicate(uri);
+
+        long[] ids = new long[values.length];
+        int rows = 0;
+        Shard shard = mShardManager.acquireOrCreate(PetContract.getShelter(uri));
+        try {
+            SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues petValues : values) {
+                    long id = insertOrMerge(shard, db, petValues, onDuplicate);
+                    if (id != -1) {
+                        ids[rows++] = id;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            mShardManager.release(shard);
+        }
+
+        if (rows > 0) {
+            notifyPetsChanged(shard.shelter, rows <= MAX_REPORTED_IDS ? Arrays.copyOf(ids, rows) : null);
+        }
+        return rows;
+    }
+
+    /**
+     * Check the values of a new pet.
+     */
+    private static void validateInsert(ContentValues values) {
 
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (TextUtils.isEmpty(name)) {
@@ -117,19 +399,72 @@ public class PetProvider extends ContentProvider {
             throw new IllegalArgumentException("Pet weight cannot be negative");
         }
 
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        long newId = db.insert(PetEntry.TABLE_NAME, null, values);
+        if (values.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            checkStatus(values);
+        }
 
-        if (newId == -1) {
-            Log.e(LOG_TAG, "Insertion of new pet failed for Uri " + uri);
-            return null;
+        checkPhotoNotSet(values);
+        checkMaintainedColumnsNotSet(values);
+    }
+
+    private static String getOnDuplicate(Uri uri) {
+        String onDuplicate = uri.getQueryParameter(PetEntry.QUERY_PARAM_ON_DUPLICATE);
+        if (onDuplicate == null) {
+            return PetEntry.ON_DUPLICATE_ALLOW;
+        }
+        if (!PetEntry.ON_DUPLICATE_ALLOW.equals(onDuplicate) && !PetEntry.ON_DUPLICATE_REJECT.equals(onDuplicate)
+                && !PetEntry.ON_DUPLICATE_MERGE.equals(onDuplicate)) {
+            throw new IllegalArgumentException("Unsupported duplicate policy " + onDuplicate);
         }
+        return onDuplicate;
+    }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Insert a valid pet, or apply the given duplicate policy if it is already registered.
+     * Must be called inside a transaction. Return the id of the new or merged pet, or -1 if
+     * it was rejected or could not be inserted.
+     */
+    private long insertOrMerge(Shard shard, SQLiteDatabase db, ContentValues values, String onDuplicate) {
+        values = withStatusChange(values);
+        String matchKey = PetMatchKey.build(values.getAsString(PetEntry.COLUMN_PET_NAME),
+                values.getAsString(PetEntry.COLUMN_PET_BREED), values.getAsInteger(PetEntry.COLUMN_PET_GENDER));
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, newId);
+        if (!PetEntry.ON_DUPLICATE_ALLOW.equals(onDuplicate)) {
+            long duplicateId = findDuplicate(shard, db, matchKey);
+            if (duplicateId != -1) {
+                if (PetEntry.ON_DUPLICATE_REJECT.equals(onDuplicate)) {
+                    return -1;
+                }
+                ContentValues mergedValues = new ContentValues(values);
+                mergedValues.remove(PetEntry.COLUMN_PET_NAME);
+                mergedValues.remove(PetEntry.COLUMN_PET_BREED);
+                mergedValues.remove(PetEntry.COLUMN_PET_GENDER);
+                if (mergedValues.size() > 0) {
+                    db.update(PetEntry.TABLE_NAME, mergedValues, PetEntry._ID + "=?",
+                            new String[]{String.valueOf(duplicateId)});
+                }
+                return duplicateId;
+            }
+        }
+
+        ContentValues row = withBreedId(shard, db, values);
+        row.put(PetDbHelper.COLUMN_MATCH_KEY, matchKey);
+        return db.insert(PetEntry.TABLE_NAME, null, row);
+    }
+
+    /**
+     * Return the oldest visible pet with the given match key, or -1 if there is none. A single
+     * lookup in the match key index.
+     */
+    private long findDuplicate(Shard shard, SQLiteDatabase db, String matchKey) {
+        String selection = DatabaseUtils.concatenateWhere(PetDbHelper.COLUMN_MATCH_KEY + "=?", getVisibleSelection(shard));
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, selection, new String[]{matchKey},
+                null, null, PetEntry._ID, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -139,45 +474,420 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
 
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String shelter = PetContract.getShelter(uri);
+        if (PetContract.ALL_SHELTERS.equals(shelter)) {
+            return queryAllShelters(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        Uri shardUri = PetContract.withoutShelter(uri);
+        Cursor cursor;
+        if (!mShardManager.hasShelter(shelter)) {
+            cursor = queryUnknownShelter(shardUri, projection);
+        } else if (sUriMatcher.match(shardUri) == PETS && !isUncached(shardUri)) {
+            cursor = queryCachedList(shelter, shardUri, projection, selection, selectionArgs, sortOrder);
+        } else {
+            cursor = queryOpenShard(shelter, shardUri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        // If the data at this uri changes, the cursor will update automatically
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        return cursor;
+    }
+
+    /**
+     * Returns whether the given URI, with or without its shelter prefix, returns an aggregate
+     * of the pets, one row per group, rather than the rows of the pets.
+     */
+    static boolean isAggregateUri(Uri uri) {
+        int match = sUriMatcher.match(PetContract.withoutShelter(uri));
+        return match == SECTIONS || match == WEIGHT_HISTOGRAM;
+    }
+
+    private static boolean isUncached(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(QUERY_PARAM_UNCACHED));
+    }
+
+    /**
+     * Query the shard of the given shelter, which stays open until the cursor is closed.
+     */
+    private Cursor queryOpenShard(String shelter, Uri shardUri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        Shard shard = mShardManager.acquire(shelter);
+        if (shard == null) {
+            return queryUnknownShelter(shardUri, projection);
+        }
+        Cursor cursor;
+        try {
+            cursor = queryShard(shard, shardUri, projection, selection, selectionArgs, sortOrder);
+        } catch (RuntimeException e) {
+            mShardManager.release(shard);
+            throw e;
+        }
+        return new ShardCursor(cursor, shard);
+    }
+
+    /**
+     * Query the pets list of the given shelter through the {@link #mQueryCache}. The cursor
+     * reads a snapshot of the result, so it does not keep the shard open.
+     */
+    private Cursor queryCachedList(final String shelter, final Uri listUri, final String[] projection,
+                                   final String selection, final String[] selectionArgs, final String sortOrder) {
+        String signature = PetQueryCache.buildSignature(shelter, listUri, projection, selection, selectionArgs, sortOrder);
+        PetSnapshot snapshot = mQueryCache.get(shelter, signature, new Callable<PetSnapshot>() {
+            @Override
+            public PetSnapshot call() {
+                Shard shard = mShardManager.acquire(shelter);
+                if (shard == null) {
+                    return PetSnapshot.fromCursor(queryUnknownShelter(listUri, projection));
+                }
+                try {
+                    Cursor cursor = queryShard(shard, listUri, projection, selection, selectionArgs, sortOrder);
+                    try {
+                        return PetSnapshot.fromCursor(cursor, shard.breeds);
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    mShardManager.release(shard);
+                }
+            }
+        });
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Returns the empty result of a query of a shelter without a database, with the columns the
+     * query would have returned, the URI being stripped of its shelter prefix.
+     */
+    private static Cursor queryUnknownShelter(Uri uri, String[] projection) {
+        String[] columns;
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+            case PET_ID:
+            case DUPLICATES:
+                columns = projection != null ? projection : PET_PROJECTION;
+                break;
+            case WEIGHT_RANGE:
+                columns = projection != null ? projection : WEIGHT_RANGE_PROJECTION;
+                break;
+            case WEIGHT_HISTOGRAM:
+                columns = new String[]{PetEntry.COLUMN_BUCKET_START, PetEntry._COUNT};
+                break;
+            case SECTIONS:
+                columns = new String[]{PetEntry.COLUMN_SECTION, PetEntry._COUNT};
+                break;
+            case ARCHIVE:
+            case ARCHIVE_ID:
+                columns = projection != null ? projection : ARCHIVE_PROJECTION;
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+        return new MatrixCursor(columns);
+    }
+
+    /**
+     * Run a query on the given shard, the URI being stripped of its shelter prefix.
+     */
+    private Cursor queryShard(Shard shard, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+
+        SQLiteDatabase db = shard.dbHelper.getReadableDatabase();
+        String visibleSelection = getVisibleSelection(shard);
+        selection = DatabaseUtils.concatenateWhere(selection, visibleSelection);
 
         Cursor cursor;
         int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                cursor = db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // Only whitelisted sort orders and filters reach the database
+                PetCatalogQuery catalogQuery = PetCatalogQuery.fromUri(uri, selection, selectionArgs, sortOrder);
+                cursor = db.query(PetDbHelper.PETS_VIEW, projection != null ? projection : PET_PROJECTION,
+                        catalogQuery.selection, catalogQuery.selectionArgs, null, null, catalogQuery.sortOrder);
                 break;
             case PET_ID:
+                selection = DatabaseUtils.concatenateWhere(PetEntry._ID + "=?", visibleSelection);
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = db.query(PetDbHelper.PETS_VIEW, projection != null ? projection : PET_PROJECTION,
+                        selection, selectionArgs, null, null, sortOrder);
+                break;
+            case WEIGHT_RANGE:
+                cursor = queryWeightRange(db, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case WEIGHT_HISTOGRAM:
+                cursor = queryWeightHistogram(db, uri, selection, selectionArgs);
+                break;
+            case SECTIONS:
+                cursor = querySections(db, uri, selection, selectionArgs);
+                break;
+            case DUPLICATES:
+                cursor = queryDuplicates(db, uri, projection, selection, selectionArgs);
+                break;
+            case ARCHIVE:
+                cursor = db.query(PetDbHelper.ARCHIVE_VIEW, projection != null ? projection : ARCHIVE_PROJECTION,
+                        selection, selectionArgs, null, null, sortOrder != null ? sortOrder : PetEntry.COLUMN_ARCHIVED + " DESC");
+                break;
+            case ARCHIVE_ID:
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = db.query(PetDbHelper.ARCHIVE_VIEW, projection != null ? projection : ARCHIVE_PROJECTION,
+                        selection, selectionArgs, null, null, sortOrder);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
+        return cursor;
+    }
 
-        // If the data at this uri changes, the cursor will update automatically
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+    /**
+     * Query the pets list of every shelter, in parallel, and merge the results in the order of
+     * the list. Only the pets list can be queried across shelters.
+     */
+    private Cursor queryAllShelters(Uri uri, String[] projection, final String selection, final String[] selectionArgs,
+                                    String sortOrder) {
+
+        final Uri listUri = PetContract.withoutShelter(uri);
+        if (sUriMatcher.match(listUri) != PETS) {
+            throw new IllegalArgumentException("Only the pets list can be queried across shelters " + uri);
+        }
+        // Validates the sort order before any shard is opened: the merge only knows the supported ones
+        String mergeOrder = PetCatalogQuery.fromUri(listUri, selection, selectionArgs, sortOrder).sortOrder;
+        if (mergeOrder != null && !PetCatalogQuery.isSupportedSortOrder(mergeOrder)) {
+            throw new IllegalArgumentException("Cannot merge the shelters in the order " + mergeOrder);
+        }
+        final String[] columns = getShelterQueryColumns(projection, mergeOrder);
+        final String shelterSortOrder = sortOrder;
+        final boolean uncached = isUncached(listUri);
+
+        List<String> shelters = mShardManager.listShelters();
+        List<Future<Cursor>> futures = new ArrayList<>();
+        for (final String shelter : shelters) {
+            futures.add(getShelterQueryExecutor().submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    if (uncached) {
+                        return queryOpenShard(shelter, listUri, columns, selection, selectionArgs, shelterSortOrder);
+                    }
+                    return queryCachedList(shelter, listUri, columns, selection, selectionArgs, shelterSortOrder);
+                }
+            }));
+        }
+
+        // Wait for all the shelters, even after a failure, so that no cursor is leaked
+        Cursor[] cursors = new Cursor[futures.size()];
+        RuntimeException failure = null;
+        for (int i = 0; i < cursors.length; i++) {
+            try {
+                cursors[i] = getUninterruptibly(futures.get(i));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            throw failure;
+        }
 
+        Cursor cursor = new PetMergeCursor(cursors, shelters.toArray(new String[shelters.size()]), mergeOrder);
+        // Any change in any shelter may change the merged list
+        cursor.setNotificationUri(getContext().getContentResolver(), PetContract.BASE_CONTENT_URI);
         return cursor;
     }
 
+    /**
+     * Returns the columns to query on each shelter: the requested ones, without the shelter
+     * column added by the merge, and with the columns the merge sorts on.
+     */
+    private static String[] getShelterQueryColumns(String[] projection, String sortOrder) {
+        if (projection == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>(Arrays.asList(projection));
+        columns.remove(PetEntry.COLUMN_SHELTER);
+        if (sortOrder != null) {
+            // One of the whitelisted ORDER BY clauses, each term starting with its column
+            for (String term : sortOrder.split(",")) {
+                String column = term.trim().split("\\s+")[0];
+                if (!columns.contains(column)) {
+                    columns.add(column);
+                }
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private synchronized ExecutorService getShelterQueryExecutor() {
+        if (mShelterQueryExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            mShelterQueryExecutor = Executors.newFixedThreadPool(PetShardManager.MAX_OPEN_SHARDS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, LOG_TAG + "Shelters-" + threadCount.incrementAndGet());
+                }
+            });
+        }
+        return mShelterQueryExecutor;
+    }
+
+    static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Cursor of a shard, which keeps the shard open until it is closed
+     */
+    private final class ShardCursor extends CrossProcessCursorWrapper {
+
+        private Shard mShard;
+
+        private ShardCursor(Cursor cursor, Shard shard) {
+            super(cursor);
+            mShard = shard;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                if (mShard != null) {
+                    mShardManager.release(mShard);
+                    mShard = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Query the pets whose weight is in the range given by the URI. The range is answered by
+     * the weight index, in weight order unless another sort order is requested.
+     */
+    private Cursor queryWeightRange(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+
+        if (projection == null) {
+            projection = WEIGHT_RANGE_PROJECTION;
+        }
+
+        PetCatalogQuery rangeQuery = PetCatalogQuery.fromWeightRangeUri(uri, selection, selectionArgs, sortOrder);
+        return db.query(PetDbHelper.PETS_VIEW, projection, rangeQuery.selection, rangeQuery.selectionArgs,
+                null, null, rangeQuery.sortOrder);
+    }
+
+    /**
+     * Count the pets in each weight bucket of the range given by the URI. The buckets are
+     * computed by SQLite while walking the weight index, so only one row per non-empty bucket
+     * is ever returned.
+     */
+    private Cursor queryWeightHistogram(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+
+        long bucketSize;
+        try {
+            bucketSize = Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid histogram bucket size in " + uri, e);
+        }
+        if (bucketSize <= 0) {
+            throw new IllegalArgumentException("Histogram bucket size must be positive in " + uri);
+        }
+
+        PetCatalogQuery rangeQuery = PetCatalogQuery.fromWeightRangeUri(uri, selection, selectionArgs, null);
+
+        // The bucket size was parsed as a number, so it is safe to inline it in the statement
+        String bucketStart = "(" + PetEntry.COLUMN_PET_WEIGHT + "/" + bucketSize + ")*" + bucketSize;
+        String[] columns = new String[]{
+                bucketStart + " AS " + PetEntry.COLUMN_BUCKET_START,
+                "COUNT(*) AS " + PetEntry._COUNT};
+        return db.query(PetDbHelper.PETS_VIEW, columns, rangeQuery.selection, rangeQuery.selectionArgs,
+                PetEntry.COLUMN_BUCKET_START, null, PetEntry.COLUMN_BUCKET_START);
+    }
+
+    /**
+     * Count the pets of the list given by the URI for each first letter of their name. The
+     * counts are grouped by SQLite, which keeps the list cursor untouched and returns only one
+     * row per letter.
+     */
+    private Cursor querySections(SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs) {
+
+        String sortKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT);
+        boolean descending = PetEntry.SORT_NAME_DESC.equals(sortKey);
+        if (sortKey != null && !descending && !PetEntry.SORT_NAME_ASC.equals(sortKey)) {
+            throw new IllegalArgumentException("Sections are only available for lists sorted by name " + uri);
+        }
+
+        PetCatalogQuery catalogQuery = PetCatalogQuery.fromUri(uri, selection, selectionArgs, null);
+
+        // Same collation as the name sort orders, so sections follow the order of the list
+        String section = "substr(" + PetEntry.COLUMN_PET_NAME + ",1,1) COLLATE NOCASE";
+        String[] columns = new String[]{
+                section + " AS " + PetEntry.COLUMN_SECTION,
+                "COUNT(*) AS " + PetEntry._COUNT};
+        return db.query(PetDbHelper.PETS_VIEW, columns, catalogQuery.selection, catalogQuery.selectionArgs,
+                PetEntry.COLUMN_SECTION, null, PetEntry.COLUMN_SECTION + (descending ? " DESC" : " ASC"));
+    }
+
+    /**
+     * Query the pets with the match key of the name, breed and gender given by the URI, oldest
+     * first, with a lookup in the match key index.
+     */
+    private Cursor queryDuplicates(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs) {
+
+        String name = uri.getQueryParameter(PetEntry.QUERY_PARAM_NAME);
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        if (TextUtils.isEmpty(name) || gender == null) {
+            throw new IllegalArgumentException("Duplicates require a name and a gender " + uri);
+        }
+        String matchKey;
+        try {
+            matchKey = PetMatchKey.build(name, uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED), Integer.parseInt(gender));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid gender in " + uri, e);
+        }
+
+        selection = DatabaseUtils.concatenateWhere(selection, PetDbHelper.COLUMN_MATCH_KEY + "=?");
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{matchKey});
+        return db.query(PetDbHelper.PETS_VIEW, projection != null ? projection : PET_PROJECTION,
+                selection, selectionArgs, null, null, PetEntry._ID);
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
     public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        String shelter = PetContract.getShelter(uri);
+        uri = PetContract.withoutShelter(uri);
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(uri, values, selection, selectionArgs);
+                return updatePet(shelter, values, toTableSelection(selection), selectionArgs, null);
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, values, selection, selectionArgs);
+                selectionArgs = new String[]{String.valueOf(id)};
+                return updatePet(shelter, values, selection, selectionArgs, new long[]{id});
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -187,13 +897,55 @@ public class PetProvider extends ContentProvider {
      * Update pets in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
      * Return the number of rows that were successfully updated.
+     *
+     * @param ids the pets matching the selection if already known, null otherwise
      */
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updatePet(String shelter, ContentValues values, String selection, String[] selectionArgs, long[] ids) {
 
         if (values.size() == 0) {
             return 0;
         }
 
+        validateUpdate(values);
+
+        Shard shard = mShardManager.acquire(shelter);
+        if (shard == null) {
+            return 0;
+        }
+        try {
+            // Pets whose deletion is pending cannot be changed anymore
+            selection = DatabaseUtils.concatenateWhere(selection, getVisibleSelection(shard));
+
+            SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+            int rowsUpdated;
+            db.beginTransaction();
+            try {
+                if (ids == null) {
+                    ids = queryChangedIds(db, selection, selectionArgs);
+                }
+                updateMatchKeys(db, values, selection, selectionArgs);
+                rowsUpdated = db.update(PetEntry.TABLE_NAME, withBreedId(shard, db, withStatusChange(values)),
+                        selection, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (rowsUpdated > 0) {
+                notifyPetsChanged(shelter, ids);
+            }
+
+            return rowsUpdated;
+        } finally {
+            mShardManager.release(shard);
+        }
+    }
+
+    /**
+     * Check the values of an update, which only contain the columns that change.
+     */
+    private static void validateUpdate(ContentValues values) {
+
         if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
             String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
             if (TextUtils.isEmpty(name)) {
@@ -215,14 +967,108 @@ public class PetProvider extends ContentProvider {
             }
         }
 
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        int rowsUpdated = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        if (values.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            checkStatus(values);
+        }
+
+        checkPhotoNotSet(values);
+        checkMaintainedColumnsNotSet(values);
+    }
+
+    private static void checkStatus(ContentValues values) {
+        Integer status = values.getAsInteger(PetEntry.COLUMN_PET_STATUS);
+        if (status == null || !PetEntry.isValidStatus(status)) {
+            throw new IllegalArgumentException("Pet status cannot be null or invalid");
+        }
+    }
+
+    /**
+     * Returns the given values, with the time of the status change if they set the status,
+     * which starts the {@link PetEntry#ARCHIVE_DELAY_MILLIS} of the pets no longer available.
+     */
+    private static ContentValues withStatusChange(ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_STATUS)) {
+            return values;
+        }
+        ContentValues stamped = new ContentValues(values);
+        stamped.put(PetDbHelper.COLUMN_STATUS_CHANGED, System.currentTimeMillis());
+        return stamped;
+    }
 
-        if (rowsUpdated > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    private static void checkPhotoNotSet(ContentValues values) {
+        if (values.containsKey(PetEntry.COLUMN_PET_PHOTO)) {
+            throw new IllegalArgumentException("Pet photo can only be written through its photo URI");
         }
+    }
 
-        return rowsUpdated;
+    private static void checkMaintainedColumnsNotSet(ContentValues values) {
+        if (values.containsKey(PetDbHelper.COLUMN_MATCH_KEY) || values.containsKey(PetDbHelper.COLUMN_STATUS_CHANGED)
+                || values.containsKey(PetDbHelper.COLUMN_BREED_ID)) {
+            throw new IllegalArgumentException("Pet match key, status change time and breed id are maintained by the provider");
+        }
+    }
+
+    /**
+     * Returns a copy of the given values to write to the pets table, with the id of the breed
+     * instead of its name, the breed being added to the breeds table if it is new. Must be
+     * called inside the transaction of the write.
+     */
+    private static ContentValues withBreedId(Shard shard, SQLiteDatabase db, ContentValues values) {
+        ContentValues row = new ContentValues(values);
+        if (row.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            String breed = row.getAsString(PetEntry.COLUMN_PET_BREED);
+            row.remove(PetEntry.COLUMN_PET_BREED);
+            if (breed != null) {
+                row.put(PetDbHelper.COLUMN_BREED_ID, shard.breeds.getId(db, breed));
+            } else {
+                row.putNull(PetDbHelper.COLUMN_BREED_ID);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Returns the given selection of the pets list, which may name any column of the list, as a
+     * selection of the pets table, which has the breed ids instead of the breed names.
+     */
+    private static String toTableSelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PETS_VIEW
+                + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Recompute the match keys of the pets matching the selection, when the given update
+     * changes their name, breed or gender. Must be called inside the transaction of the update,
+     * before it.
+     */
+    private static void updateMatchKeys(SQLiteDatabase db, ContentValues values, String selection, String[] selectionArgs) {
+        boolean nameChanged = values.containsKey(PetEntry.COLUMN_PET_NAME);
+        boolean breedChanged = values.containsKey(PetEntry.COLUMN_PET_BREED);
+        boolean genderChanged = values.containsKey(PetEntry.COLUMN_PET_GENDER);
+        if (!nameChanged && !breedChanged && !genderChanged) {
+            return;
+        }
+
+        Cursor cursor = db.query(PetDbHelper.PETS_VIEW, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER}, selection, selectionArgs, null, null, null);
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME
+                + " SET " + PetDbHelper.COLUMN_MATCH_KEY + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            while (cursor.moveToNext()) {
+                String name = nameChanged ? values.getAsString(PetEntry.COLUMN_PET_NAME) : cursor.getString(1);
+                String breed = breedChanged ? values.getAsString(PetEntry.COLUMN_PET_BREED) : cursor.getString(2);
+                int gender = genderChanged ? values.getAsInteger(PetEntry.COLUMN_PET_GENDER) : cursor.getInt(3);
+                update.bindString(1, PetMatchKey.build(name, breed, gender));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+            cursor.close();
+        }
     }
 
     /**
@@ -230,29 +1076,611 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        Shard shard = mShardManager.acquire(PetContract.getShelter(uri));
+        if (shard == null) {
+            return 0;
+        }
+        try {
+            return deleteFromShard(shard, PetContract.withoutShelter(uri), selection, selectionArgs);
+        } finally {
+            mShardManager.release(shard);
+        }
+    }
+
+    private int deleteFromShard(Shard shard, Uri uri, String selection, String[] selectionArgs) {
         // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SQLiteDatabase database = shard.dbHelper.getWritableDatabase();
 
+        long[] ids = null;
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+                selection = toTableSelection(selection);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                selectionArgs = new String[]{String.valueOf(id)};
+                ids = new long[]{id};
                 break;
+            case PET_PHOTO:
+                return deletePhoto(shard, Long.parseLong(uri.getPathSegments().get(1)));
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        int rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+        if (Boolean.parseBoolean(uri.getQueryParameter(PetEntry.QUERY_PARAM_DEFERRED))) {
+            return deferDelete(shard, selection, selectionArgs, null);
+        }
+
+        int rowsDeleted;
+        database.beginTransaction();
+        try {
+            if (ids == null) {
+                ids = queryChangedIds(database, selection, selectionArgs);
+            }
+            rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
         if (rowsDeleted > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (ids != null) {
+                shard.photoStore.delete(ids);
+            } else {
+                shard.photoStore.deleteOrphans(database);
+            }
+            notifyPetsChanged(shard.shelter, ids);
         }
 
         return rowsDeleted;
     }
 
+    /**
+     * Returns the selection hiding the pets of the given shard whose deletion is pending,
+     * or null if there are none.
+     */
+    private String getVisibleSelection(Shard shard) {
+        commitLeftoverDeletes(shard);
+        if (!mPendingDeleteShelters.contains(shard.shelter)) {
+            return null;
+        }
+        return PetEntry._ID + " NOT IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PENDING_DELETES_TABLE + ")";
+    }
+
+    /**
+     * Commit the deletions the previous run of the app left pending in the given shard, the
+     * first time the shard is used: their undo window is long gone.
+     */
+    private void commitLeftoverDeletes(Shard shard) {
+        if (mCheckedShelters.contains(shard.shelter)) {
+            return;
+        }
+        synchronized (mPendingDeletesLock) {
+            if (mCheckedShelters.contains(shard.shelter)) {
+                return;
+            }
+            if (DatabaseUtils.queryNumEntries(shard.dbHelper.getReadableDatabase(), PetDbHelper.PENDING_DELETES_TABLE) > 0) {
+                // Hidden until committed, as they were before
+                mPendingDeleteShelters.add(shard.shelter);
+                mCheckedShelters.add(shard.shelter);
+                int rows = commitDeletes(shard);
+                Log.i(LOG_TAG, "Committed " + rows + " deletions left pending in shelter " + shard.shelter);
+            } else {
+                mCheckedShelters.add(shard.shelter);
+            }
+        }
+    }
+
+    /**
+     * Hide the pets matching the given selection until their deletion is committed or undone.
+     * Return the number of pets hidden.
+     *
+     * @param selectedIds the pets the selection is restricted to, or null
+     */
+    private int deferDelete(Shard shard, String selection, String[] selectionArgs, long[] selectedIds) {
+        commitLeftoverDeletes(shard);
+
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        long[] ids;
+        int rows;
+        synchronized (mPendingDeletesLock) {
+            // Hidden from the queries before they become pending
+            selection = DatabaseUtils.concatenateWhere(selection, getVisibleSelection(shard));
+            mPendingDeleteShelters.add(shard.shelter);
+
+            db.beginTransaction();
+            try {
+                if (selectedIds != null) {
+                    selection = DatabaseUtils.concatenateWhere(selectIds(db, selectedIds), selection);
+                }
+                ids = queryChangedIds(db, selection, selectionArgs);
+                SQLiteStatement statement = db.compileStatement("INSERT INTO " + PetDbHelper.PENDING_DELETES_TABLE
+                        + " (" + PetEntry._ID + ") SELECT " + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME
+                        + " WHERE " + selection);
+                try {
+                    if (selectionArgs != null) {
+                        statement.bindAllArgsAsStrings(selectionArgs);
+                    }
+                    rows = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if (rows > 0) {
+            notifyPetsChanged(shard.shelter, ids);
+        }
+        return rows;
+    }
+
+    /**
+     * Delete for good, in a single transaction, the pets of the given shard whose deletion is
+     * pending. They are already hidden, so the observers are not notified. Return the number of
+     * pets deleted.
+     */
+    private int commitDeletes(Shard shard) {
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        long[] ids;
+        int rows;
+        synchronized (mPendingDeletesLock) {
+            if (!mPendingDeleteShelters.contains(shard.shelter)) {
+                return 0;
+            }
+            String selection = PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PENDING_DELETES_TABLE + ")";
+            db.beginTransaction();
+            try {
+                ids = queryChangedIds(db, selection, null);
+                rows = db.delete(PetEntry.TABLE_NAME, selection, null);
+                db.delete(PetDbHelper.PENDING_DELETES_TABLE, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mPendingDeleteShelters.remove(shard.shelter);
+        }
+
+        if (rows > 0) {
+            if (ids != null) {
+                shard.photoStore.delete(ids);
+            } else {
+                shard.photoStore.deleteOrphans(db);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Show again the pets of the given shard whose deletion is pending. Return the number of
+     * pets restored.
+     */
+    private int undoDeletes(Shard shard) {
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        long[] ids;
+        int rows;
+        synchronized (mPendingDeletesLock) {
+            if (!mPendingDeleteShelters.contains(shard.shelter)) {
+                return 0;
+            }
+            String selection = PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PENDING_DELETES_TABLE + ")";
+            db.beginTransaction();
+            try {
+                ids = queryChangedIds(db, selection, null);
+                rows = (int) DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME, selection);
+                db.delete(PetDbHelper.PENDING_DELETES_TABLE, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mPendingDeleteShelters.remove(shard.shelter);
+        }
+
+        if (rows > 0) {
+            notifyPetsChanged(shard.shelter, ids);
+        }
+        return rows;
+    }
+
+    /**
+     * Remove the photo of the given pet. Return 1 if it had one, 0 otherwise.
+     */
+    private int deletePhoto(Shard shard, long id) {
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.putNull(PetEntry.COLUMN_PET_PHOTO);
+        int rows = db.update(PetEntry.TABLE_NAME, values,
+                PetEntry._ID + "=? AND " + PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", new String[]{String.valueOf(id)});
+        shard.photoStore.delete(new long[]{id});
+        if (rows > 0) {
+            notifyPetsChanged(shard.shelter, new long[]{id});
+        }
+        return rows;
+    }
+
+    /**
+     * Open the photo of a pet, or the backup of the pets (see {@link #openBackup}). Mode "r"
+     * reads the current photo; modes "w" and "wt" write a new one, which replaces the current
+     * photo and bumps {@link PetEntry#COLUMN_PET_PHOTO} once the writer closes the file without
+     * error.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        Uri photoUri = PetContract.withoutShelter(uri);
+        int match = sUriMatcher.match(photoUri);
+        if (match == BACKUP) {
+            return openBackup(uri, mode);
+        }
+        if (match != PET_PHOTO) {
+            throw new IllegalArgumentException("Opening files is not supported for " + uri);
+        }
+        final long id = Long.parseLong(photoUri.getPathSegments().get(1));
+        boolean write = "w".equals(mode) || "wt".equals(mode);
+        if (!write && !"r".equals(mode)) {
+            throw new IllegalArgumentException("Mode " + mode + " is not supported for " + uri);
+        }
+
+        final Shard shard = mShardManager.acquire(PetContract.getShelter(uri));
+        if (shard == null) {
+            throw new FileNotFoundException("No shelter " + PetContract.getShelter(uri));
+        }
+        // Released once the file is open, or for a write by the listener once the photo is committed
+        boolean releasedByListener = false;
+        try {
+            if (!write) {
+                File photo = shard.photoStore.getPhotoFile(id);
+                if (!photo.exists()) {
+                    throw new FileNotFoundException("Pet " + id + " has no photo");
+                }
+                return ParcelFileDescriptor.open(photo, ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+
+            if (DatabaseUtils.queryNumEntries(shard.dbHelper.getReadableDatabase(), PetEntry.TABLE_NAME,
+                    PetEntry._ID + "=?", new String[]{String.valueOf(id)}) == 0) {
+                throw new FileNotFoundException("No pet " + id);
+            }
+
+            // Written aside, so that readers keep seeing the previous photo until the new one is complete
+            final File temp = shard.photoStore.getTempFile(id);
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(temp,
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE,
+                    getPhotoHandler(), new ParcelFileDescriptor.OnCloseListener() {
+                        @Override
+                        public void onClose(IOException e) {
+                            try {
+                                if (e == null) {
+                                    commitPhoto(shard, id, temp);
+                                } else {
+                                    Log.w(LOG_TAG, "Write of the photo of pet " + id + " failed", e);
+                                    temp.delete();
+                                }
+                            } finally {
+                                mShardManager.release(shard);
+                            }
+                        }
+                    });
+            releasedByListener = true;
+            return descriptor;
+        } finally {
+            if (!releasedByListener) {
+                mShardManager.release(shard);
+            }
+        }
+    }
+
+    /**
+     * Open a pipe to the backup of the pets of the shelter of the given URI. Mode "r" reads a
+     * new backup, written as it is read, incremental if the URI has a
+     * {@link PetEntry#QUERY_PARAM_SINCE} sequence number; mode "w" restores the backup written
+     * to the pipe once it is closed. The backups are written and restored one at a time.
+     */
+    private ParcelFileDescriptor openBackup(Uri uri, String mode) throws FileNotFoundException {
+        final String shelter = PetContract.getShelter(uri);
+        if (!PetContract.isValidShelter(shelter)) {
+            throw new IllegalArgumentException("Backups are made one shelter at a time: " + uri);
+        }
+        final boolean write = "w".equals(mode) || "wt".equals(mode);
+        if (!write && !"r".equals(mode)) {
+            throw new IllegalArgumentException("Mode " + mode + " is not supported for " + uri);
+        }
+        final long sinceSeq;
+        try {
+            String since = uri.getQueryParameter(PetEntry.QUERY_PARAM_SINCE);
+            sinceSeq = since != null ? Long.parseLong(since) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + PetEntry.QUERY_PARAM_SINCE + " in " + uri);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot open a pipe for " + uri + ": " + e.getMessage());
+        }
+        // The end of the pipe the provider works on, closed with the error if the work fails
+        final ParcelFileDescriptor ours = write ? pipe[0] : pipe[1];
+        getBackupHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (write) {
+                        InputStream in = new FileInputStream(ours.getFileDescriptor());
+                        PetBackup.restore(getContext(), shelter, in, -1);
+                    } else {
+                        OutputStream out = new FileOutputStream(ours.getFileDescriptor());
+                        PetBackup.export(getContext(), shelter, sinceSeq, out);
+                    }
+                    ours.close();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, (write ? "Restore" : "Backup") + " of shelter " + shelter + " failed", e);
+                    try {
+                        ours.closeWithError(e.toString());
+                    } catch (IOException closeError) {
+                        Log.w(LOG_TAG, "Cannot close the backup pipe", closeError);
+                    }
+                }
+            }
+        });
+        return write ? pipe[1] : pipe[0];
+    }
+
+    private synchronized Handler getBackupHandler() {
+        if (mBackupHandler == null) {
+            HandlerThread thread = new HandlerThread(LOG_TAG + "Backup", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mBackupHandler = new Handler(thread.getLooper());
+        }
+        return mBackupHandler;
+    }
+
+    private synchronized Handler getPhotoHandler() {
+        if (mPhotoHandler == null) {
+            HandlerThread thread = new HandlerThread(LOG_TAG + "Photos", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mPhotoHandler = new Handler(thread.getLooper());
+        }
+        return mPhotoHandler;
+    }
+
+    /**
+     * Replace the photo of a pet with the completely written temporary file, and publish its
+     * new version.
+     */
+    private void commitPhoto(Shard shard, long id, File temp) {
+        File photo = shard.photoStore.getPhotoFile(id);
+        if (!temp.renameTo(photo)) {
+            Log.e(LOG_TAG, "Cannot rename " + temp + " to " + photo);
+            temp.delete();
+            return;
+        }
+
+        // A new version even if two photos are written within the same millisecond
+        SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME
+                + " SET " + PetEntry.COLUMN_PET_PHOTO + " = max(ifnull(" + PetEntry.COLUMN_PET_PHOTO + ", 0) + 1, ?)"
+                + " WHERE " + PetEntry._ID + " = ?");
+        int rows;
+        try {
+            statement.bindLong(1, System.currentTimeMillis());
+            statement.bindLong(2, id);
+            rows = statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+
+        if (rows == 0) {
+            // The pet was deleted while its photo was being written
+            shard.photoStore.delete(new long[]{id});
+            return;
+        }
+        notifyPetsChanged(shard.shelter, new long[]{id});
+    }
+
+    /**
+     * Return the ids of the pets matching the given selection, so that the change about to be
+     * made to them can be reported precisely. Return null when there are too many of them
+     * to be worth listing.
+     */
+    private static long[] queryChangedIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, selection, selectionArgs,
+                null, null, null, String.valueOf(MAX_REPORTED_IDS + 1));
+        try {
+            if (cursor.getCount() > MAX_REPORTED_IDS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Notify the observers of the pets that the given pets of the given shelter changed.
+     *
+     * @param ids the changed pets, or null if any pet of the shelter may have changed
+     */
+    private void notifyPetsChanged(String shelter, long[] ids) {
+        mQueryCache.invalidate(shelter);
+        // Always notify the pets URI itself, so that the observers of all its descendants
+        // (single pets, sections, weight ranges...) are notified too
+        getContext().getContentResolver().notifyChange(PetEntry.buildChangeUri(shelter, ids), null);
+    }
+
+
+    /**
+     * Run one of the bulk methods of the provider.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        switch (method) {
+            case PetEntry.METHOD_BULK_UPDATE: {
+                ContentValues values = extras != null ? (ContentValues) extras.getParcelable(PetEntry.EXTRA_VALUES) : null;
+                if (values == null || values.size() == 0) {
+                    throw new IllegalArgumentException("Bulk update requires values");
+                }
+                validateUpdate(values);
+                return bulkWrite(getBulkShelter(extras), getBulkIds(extras), values);
+            }
+            case PetEntry.METHOD_BULK_DELETE: {
+                long[] ids = getBulkIds(extras);
+                if (!extras.getBoolean(PetEntry.EXTRA_DEFERRED)) {
+                    return bulkWrite(getBulkShelter(extras), ids, null);
+                }
+                Shard shard = mShardManager.acquire(getBulkShelter(extras));
+                int rows = 0;
+                if (shard != null) {
+                    try {
+                        rows = deferDelete(shard, null, null, ids);
+                    } finally {
+                        mShardManager.release(shard);
+                    }
+                }
+                Bundle result = new Bundle();
+                result.putInt(PetEntry.EXTRA_ROW_COUNT, rows);
+                return result;
+            }
+            case PetEntry.METHOD_UNDO_DELETES:
+            case PetEntry.METHOD_COMMIT_DELETES: {
+                Shard shard = mShardManager.acquire(getBulkShelter(extras));
+                int rows = 0;
+                if (shard != null) {
+                    try {
+                        commitLeftoverDeletes(shard);
+                        rows = PetEntry.METHOD_UNDO_DELETES.equals(method) ? undoDeletes(shard) : commitDeletes(shard);
+                    } finally {
+                        mShardManager.release(shard);
+                    }
+                }
+                Bundle result = new Bundle();
+                result.putInt(PetEntry.EXTRA_ROW_COUNT, rows);
+                return result;
+            }
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    private static String getBulkShelter(Bundle extras) {
+        String shelter = extras != null ? extras.getString(PetEntry.EXTRA_SHELTER) : null;
+        return shelter != null ? shelter : PetContract.DEFAULT_SHELTER;
+    }
+
+    private static long[] getBulkIds(Bundle extras) {
+        long[] ids = extras != null ? extras.getLongArray(PetEntry.EXTRA_IDS) : null;
+        if (ids == null) {
+            throw new IllegalArgumentException("Bulk operation requires the ids of the pets");
+        }
+        return ids;
+    }
+
+    /**
+     * Update (or delete, when values is null) all the given pets in a single transaction,
+     * and notify the change once.
+     */
+    private Bundle bulkWrite(String shelter, long[] ids, ContentValues values) {
+        int rows = 0;
+
+        Shard shard = mShardManager.acquire(shelter);
+        if (shard == null) {
+            Bundle result = new Bundle();
+            result.putInt(PetEntry.EXTRA_ROW_COUNT, 0);
+            return result;
+        }
+        try {
+            // Pets whose deletion is pending cannot be changed anymore
+            String visibleSelection = getVisibleSelection(shard);
+            if (ids.length > 0) {
+                SQLiteDatabase db = shard.dbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    String selection = DatabaseUtils.concatenateWhere(selectIds(db, ids), visibleSelection);
+                    if (values != null) {
+                        updateMatchKeys(db, values, selection, null);
+                        rows = db.update(PetEntry.TABLE_NAME, withBreedId(shard, db, withStatusChange(values)),
+                                selection, null);
+                    } else {
+                        rows = db.delete(PetEntry.TABLE_NAME, selection, null);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (rows > 0 && values == null) {
+                if (visibleSelection == null) {
+                    shard.photoStore.delete(ids);
+                } else {
+                    // The photos of the pending pets are kept, in case their deletion is undone
+                    shard.photoStore.deleteOrphans(shard.dbHelper.getWritableDatabase());
+                }
+            }
+        } finally {
+            mShardManager.release(shard);
+        }
+
+        if (rows > 0) {
+            // Some of the ids may not exist anymore, which the observers can cope with
+            notifyPetsChanged(shelter, ids.length <= MAX_REPORTED_IDS ? ids : null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(PetEntry.EXTRA_ROW_COUNT, rows);
+        return result;
+    }
+
+    /**
+     * Return a selection matching the pets with the given ids. Must be called inside the
+     * transaction that uses the selection.
+     * <p>
+     * Short lists are inlined in an IN list. Long ones are loaded in a temporary table, which
+     * keeps the statement small and lets SQLite join on the primary key.
+     */
+    private static String selectIds(SQLiteDatabase db, long[] ids) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(PetEntry._ID);
+        sb.append(" IN (");
+
+        if (ids.length <= MAX_IN_LIST_IDS) {
+            // The ids are numbers, so it is safe to inline them in the statement
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(ids[i]);
+            }
+        } else {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + SELECTED_IDS_TABLE + " (" + PetEntry._ID + " INTEGER PRIMARY KEY)");
+            db.delete(SELECTED_IDS_TABLE, null, null);
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT OR IGNORE INTO " + SELECTED_IDS_TABLE + " (" + PetEntry._ID + ") VALUES (?)");
+            try {
+                for (long id : ids) {
+                    insert.bindLong(1, id);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            sb.append("SELECT ");
+            sb.append(PetEntry._ID);
+            sb.append(" FROM ");
+            sb.append(SELECTED_IDS_TABLE);
+        }
+
+        sb.append(")");
+        return sb.toString();
+    }
+
 }
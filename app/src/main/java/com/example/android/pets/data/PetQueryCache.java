@@ -0,0 +1,234 @@
+package com.example.android.pets.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of the pets list queries, kept as {@link PetSnapshot}s shared by all the identical
+ * queries, that is the queries with the same signature: shelter, URI, projection, selection,
+ * selection arguments and sort order.
+ * <p>
+ * Each shelter has a generation, bumped by {@link #invalidate(String)} after every write of
+ * its pets, and a result is only reused while the generation it was queried at is current.
+ * The generation is read before the query runs, so a result that may predate a write is never
+ * reused after the write is notified. Identical queries running at the same time are collapsed
+ * into a single query, whose result they all get.
+ * <p>
+ * The cache is bounded by the size of the snapshots, and cleared by the {@link PetMemoryBudget}
+ * when memory runs low. A screen releasing the snapshots it was given must {@link #evict} them
+ * too for their memory to be released. All the methods can be called from any thread.
+ */
+public final class PetQueryCache {
+
+    /**
+     * Largest share of the memory budget the results take
+     */
+    private static final int BUDGET_FRACTION = 8;
+
+    private static PetQueryCache sInstance;
+
+    /**
+     * Generation of each shelter queried or written so far
+     */
+    private final ConcurrentHashMap<String, AtomicLong> mGenerations = new ConcurrentHashMap<>();
+
+    /**
+     * Results by signature
+     */
+    private final LruCache<String, Entry> mEntries;
+
+    /**
+     * Queries running, by signature and generation
+     */
+    private final ConcurrentHashMap<String, FutureTask<PetSnapshot>> mRunning = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mCollapsed = new AtomicInteger();
+
+    private static final class Entry {
+
+        private final long mGeneration;
+        private final PetSnapshot mSnapshot;
+
+        private Entry(long generation, PetSnapshot snapshot) {
+            mGeneration = generation;
+            mSnapshot = snapshot;
+        }
+    }
+
+    private PetQueryCache(Context context) {
+        PetMemoryBudget budget = PetMemoryBudget.getInstance(context);
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE, budget.getLimit() / BUDGET_FRACTION);
+        mEntries = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String signature, Entry entry) {
+                return (int) Math.min(Integer.MAX_VALUE, entry.mSnapshot.getSizeBytes());
+            }
+        };
+
+        budget.register(new PetMemoryBudget.Consumer() {
+            @Override
+            public String getName() {
+                return "query cache";
+            }
+
+            @Override
+            public long getMemoryUsage() {
+                return mEntries.size();
+            }
+
+            @Override
+            public long trimMemory(int level) {
+                long before = mEntries.size();
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    mEntries.evictAll();
+                } else {
+                    mEntries.trimToSize(mEntries.size() / 2);
+                }
+                return before - mEntries.size();
+            }
+        }, PetMemoryBudget.PRIORITY_CACHE);
+    }
+
+    public static synchronized PetQueryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetQueryCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the signature of a query of the given shelter. The query parameters of the URI
+     * are sorted, so that their order does not matter.
+     *
+     * @param uri the URI of the query, without its shelter prefix
+     */
+    static String buildSignature(String shelter, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        StringBuilder sb = new StringBuilder();
+        appendPart(sb, shelter);
+        appendPart(sb, uri.getPath());
+        for (String name : new TreeSet<>(uri.getQueryParameterNames())) {
+            appendPart(sb, name);
+            appendPart(sb, uri.getQueryParameters(name).toString());
+        }
+        appendPart(sb, projection != null ? Arrays.toString(projection) : null);
+        appendPart(sb, selection);
+        appendPart(sb, selectionArgs != null ? Arrays.toString(selectionArgs) : null);
+        appendPart(sb, sortOrder);
+        return sb.toString();
+    }
+
+    /**
+     * Append a part prefixed with its length, so that no two different queries have the same
+     * signature.
+     */
+    private static void appendPart(StringBuilder sb, String part) {
+        if (part == null) {
+            sb.append("-;");
+        } else {
+            sb.append(part.length()).append(':').append(part);
+        }
+    }
+
+    /**
+     * Returns the result of the query of the given signature, running the query unless its
+     * current result is cached or the same query is already running.
+     *
+     * @throws RuntimeException the exception thrown by the query
+     */
+    PetSnapshot get(String shelter, String signature, Callable<PetSnapshot> query) {
+        long generation = getGeneration(shelter).get();
+        Entry entry = mEntries.get(signature);
+        if (entry != null && entry.mGeneration == generation) {
+            mHits.incrementAndGet();
+            return entry.mSnapshot;
+        }
+
+        String runningKey = signature + '@' + generation;
+        FutureTask<PetSnapshot> task = new FutureTask<>(query);
+        FutureTask<PetSnapshot> running = mRunning.putIfAbsent(runningKey, task);
+        if (running == null) {
+            mMisses.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                mRunning.remove(runningKey, task);
+            }
+            running = task;
+        } else {
+            mCollapsed.incrementAndGet();
+        }
+
+        PetSnapshot snapshot;
+        try {
+            snapshot = PetProvider.getUninterruptibly(running);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+        if (running == task && getGeneration(shelter).get() == generation) {
+            mEntries.put(signature, new Entry(generation, snapshot));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drop the results sharing the given snapshot. Returns the bytes released by the cache.
+     */
+    public long evict(PetSnapshot snapshot) {
+        long before = mEntries.size();
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            if (cached.getValue().mSnapshot == snapshot) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+        return Math.max(0, before - mEntries.size());
+    }
+
+    /**
+     * Returns the bytes of the results cached.
+     */
+    long getSizeBytes() {
+        return mEntries.size();
+    }
+
+    /**
+     * Stop reusing the results of the given shelter, after a write of its pets.
+     */
+    void invalidate(String shelter) {
+        getGeneration(shelter).incrementAndGet();
+    }
+
+    private AtomicLong getGeneration(String shelter) {
+        AtomicLong generation = mGenerations.get(shelter);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = mGenerations.putIfAbsent(shelter, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Query cache: " + mEntries.size() + " of " + mEntries.maxSize() + " bytes used, "
+                + mHits.get() + " hits, " + mMisses.get() + " misses, " + mCollapsed.get() + " collapsed");
+    }
+
+}
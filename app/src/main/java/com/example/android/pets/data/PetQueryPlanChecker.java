@@ -0,0 +1,211 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that every combination of sort order and filters supported by {@link PetCatalogQuery},
+ * the default order included, on the whole pets list and on a weight range, is answered through one of the catalog indexes, without full table scans and without
+ * temporary sorts, on a pets table of {@link #SIMULATED_ROWS} rows.
+ * <p>
+ * The check runs against an empty in-memory copy of the schema. The query planner is fed
+ * with hand-written sqlite_stat1 statistics describing a large table, so it picks the plans it
+ * would pick on a large analyzed database without having to generate one.
+ */
+final class PetQueryPlanChecker {
+
+    /**
+     * Number of rows of the simulated pets table
+     */
+    static final long SIMULATED_ROWS = 1000000;
+
+    /**
+     * Estimated number of distinct values of each column in the simulated pets table
+     */
+    private static final Map<String, Long> DISTINCT_VALUES = new HashMap<>();
+
+    static {
+        DISTINCT_VALUES.put(PetEntry._ID, SIMULATED_ROWS);
+        DISTINCT_VALUES.put(PetEntry.COLUMN_PET_NAME, 250000L);
+        DISTINCT_VALUES.put(PetDbHelper.COLUMN_BREED_ID, 400L);
+        DISTINCT_VALUES.put(PetEntry.COLUMN_PET_GENDER, 3L);
+        DISTINCT_VALUES.put(PetEntry.COLUMN_PET_WEIGHT, 80L);
+        DISTINCT_VALUES.put(PetEntry.COLUMN_PET_PHOTO, SIMULATED_ROWS);
+    }
+
+    /**
+     * Matches every access to the pets table in the output of EXPLAIN QUERY PLAN,
+     * e.g. "SEARCH TABLE pets USING COVERING INDEX idx_pets_gender_name (gender=?)".
+     */
+    private static final Pattern TABLE_ACCESS =
+            Pattern.compile("(SCAN|SEARCH)( TABLE)? " + PetEntry.TABLE_NAME + "\\b([^;]*)");
+
+    /**
+     * Projection used by the catalog
+     */
+    private static final String[] CATALOG_PROJECTION =
+            {PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_PHOTO};
+
+    private PetQueryPlanChecker() {
+    }
+
+    /**
+     * Explain every supported catalog query.
+     *
+     * @throws IllegalStateException listing every query that is not fully answered by an index
+     */
+    static void verify() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            PetDbHelper.createSchema(db);
+            simulateStatistics(db);
+
+            List<String> failures = new ArrayList<>();
+            Integer[] genders = {null, PetEntry.GENDER_FEMALE};
+            String[] breeds = {null, "Terrier"};
+            // No sort parameter and no sort order either: the default query of the catalog
+            List<String> sortKeys = new ArrayList<>();
+            sortKeys.add(null);
+            sortKeys.addAll(PetCatalogQuery.sortKeys());
+            for (String sortKey : sortKeys) {
+                for (Integer gender : genders) {
+                    for (String breed : breeds) {
+                        Uri uri = PetEntry.buildCatalogUri(sortKey, gender, breed);
+                        String plan = explain(db, PetCatalogQuery.fromUri(uri, null, null, null));
+                        String failure = checkPlan(plan, gender != null || breed != null);
+                        if (failure != null) {
+                            failures.add(uri + ": " + failure + " [" + plan + "]");
+                        }
+                    }
+                }
+            }
+
+            // Weight ranges, in weight order
+            for (String sortKey : new String[]{null, PetEntry.SORT_WEIGHT_DESC}) {
+                for (Integer gender : genders) {
+                    for (String breed : breeds) {
+                        Uri uri = withCatalogParameters(PetEntry.buildWeightRangeUri(5, 10), sortKey, gender, breed);
+                        String plan = explain(db, PetCatalogQuery.fromWeightRangeUri(uri, null, null, null));
+                        String failure = checkPlan(plan, true);
+                        if (failure != null) {
+                            failures.add(uri + ": " + failure + " [" + plan + "]");
+                        }
+                    }
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                throw new IllegalStateException("Catalog queries not backed by an index: " + failures);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Replace the statistics of the given database with the ones of a pets table
+     * of {@link #SIMULATED_ROWS} rows, and make the query planner load them.
+     */
+    private static void simulateStatistics(SQLiteDatabase db) {
+        db.execSQL("ANALYZE");
+        db.execSQL("DELETE FROM sqlite_stat1");
+        db.execSQL("INSERT INTO sqlite_stat1 (tbl, idx, stat) VALUES (?, NULL, ?)",
+                new Object[]{PetEntry.TABLE_NAME, String.valueOf(SIMULATED_ROWS)});
+
+        for (String index : queryColumn(db, "PRAGMA index_list(" + PetEntry.TABLE_NAME + ")")) {
+            StringBuilder stat = new StringBuilder(String.valueOf(SIMULATED_ROWS));
+            long distinct = 1;
+            for (String column : queryColumn(db, "PRAGMA index_info(" + index + ")")) {
+                Long values = DISTINCT_VALUES.get(column);
+                distinct = Math.min(SIMULATED_ROWS, distinct * (values != null ? values : SIMULATED_ROWS));
+                stat.append(' ').append(Math.max(1, SIMULATED_ROWS / distinct));
+            }
+            db.execSQL("INSERT INTO sqlite_stat1 (tbl, idx, stat) VALUES (?, ?, ?)",
+                    new Object[]{PetEntry.TABLE_NAME, index, stat.toString()});
+        }
+
+        db.execSQL("ANALYZE sqlite_master");
+    }
+
+    /**
+     * Return the values of the "name" column for all the rows returned by the given statement
+     */
+    private static List<String> queryColumn(SQLiteDatabase db, String sql) {
+        List<String> values = new ArrayList<>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                values.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    /**
+     * Return a copy of the given URI with the sort and filter query parameters of the catalog
+     */
+    private static Uri withCatalogParameters(Uri uri, String sortKey, Integer gender, String breed) {
+        Uri parameters = PetEntry.buildCatalogUri(sortKey, gender, breed);
+        return uri.buildUpon().encodedQuery(parameters.getEncodedQuery()).build();
+    }
+
+    /**
+     * Return the query plan of the given catalog query, one step per ';'
+     */
+    private static String explain(SQLiteDatabase db, PetCatalogQuery query) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, PetDbHelper.PETS_VIEW, CATALOG_PROJECTION,
+                query.selection, null, null, query.sortOrder, null);
+
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, query.selectionArgs);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailIndex)).append(';');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Return why the given plan is not acceptable, or null if it is.
+     *
+     * @param filtered whether the query restricts the rows, in which case the index must be
+     *                 searched rather than walked from start to end
+     */
+    private static String checkPlan(String plan, boolean filtered) {
+        if (plan.contains("TEMP B-TREE")) {
+            return "temporary sort";
+        }
+
+        boolean accessed = false;
+        Matcher matcher = TABLE_ACCESS.matcher(plan);
+        while (matcher.find()) {
+            accessed = true;
+            if (!matcher.group(3).contains("INDEX")) {
+                return "full table scan";
+            }
+            if (filtered && !"SEARCH".equals(matcher.group(1))) {
+                return "full index scan";
+            }
+        }
+        return accessed ? null : "unexpected plan";
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opens the databases of the shelters, one file per shelter, when they are first used, and
+ * keeps at most {@link #MAX_OPEN_SHARDS} of them open, closing the least recently used ones.
+ * The database of a shelter is only created by the operations that add pets to it, so that
+ * reading a misspelled shelter does not leave an empty one behind.
+ * <p>
+ * A shard is acquired for the duration of each operation, and for the lifetime of the cursors
+ * returned by the provider, so that an evicted shard is only closed once nobody uses it.
+ * The database of the {@link PetContract#DEFAULT_SHELTER} is always open.
+ */
+final class PetShardManager {
+
+    private static final String LOG_TAG = PetShardManager.class.getSimpleName();
+
+    /**
+     * Most databases kept open at the same time, besides the ones still in use
+     */
+    static final int MAX_OPEN_SHARDS = 4;
+
+    private static PetShardManager sInstance;
+
+    private final Context mContext;
+
+    /**
+     * Open shards, from the least to the most recently used. Guarded by this.
+     */
+    private final LinkedHashMap<String, Shard> mShards = new LinkedHashMap<>(MAX_OPEN_SHARDS + 1, 0.75f, true);
+
+    /**
+     * Evicted shards still in use, taken back if acquired again before being closed, so that
+     * a database is never opened twice. Guarded by this.
+     */
+    private final Map<String, Shard> mEvictedShards = new HashMap<>();
+
+    /**
+     * Database and photos of a shelter
+     */
+    static final class Shard {
+
+        final String shelter;
+        final PetDbHelper dbHelper;
+        final PetPhotoStore photoStore;
+        final PetBreeds breeds;
+
+        /**
+         * Number of operations and cursors using the shard, guarded by the manager
+         */
+        private int mUsers;
+        private boolean mEvicted;
+
+        private Shard(String shelter, PetDbHelper dbHelper, PetPhotoStore photoStore) {
+            this.shelter = shelter;
+            this.dbHelper = dbHelper;
+            this.photoStore = photoStore;
+            this.breeds = new PetBreeds(dbHelper);
+        }
+    }
+
+    private PetShardManager(Context context) {
+        mContext = context;
+    }
+
+    static synchronized PetShardManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetShardManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the shard of the given shelter, opening it if needed, or null if the shelter has
+     * no database. Every shard returned must be released with {@link #release(Shard)}.
+     *
+     * @throws IllegalArgumentException if the shelter name is not valid
+     */
+    synchronized Shard acquire(String shelter) {
+        return acquire(shelter, false);
+    }
+
+    /**
+     * Same as {@link #acquire(String)}, creating the database of the shelter if it has none,
+     * for the inserts and the backup restores.
+     */
+    synchronized Shard acquireOrCreate(String shelter) {
+        return acquire(shelter, true);
+    }
+
+    /**
+     * Returns whether the given shelter has a database, the default one always has.
+     *
+     * @throws IllegalArgumentException if the shelter name is not valid
+     */
+    synchronized boolean hasShelter(String shelter) {
+        if (!PetContract.isValidShelter(shelter)) {
+            throw new IllegalArgumentException("Invalid shelter " + shelter);
+        }
+        return PetContract.DEFAULT_SHELTER.equals(shelter) || mShards.containsKey(shelter)
+                || mEvictedShards.containsKey(shelter)
+                || mContext.getDatabasePath(PetDbHelper.getDatabaseName(shelter)).exists();
+    }
+
+    private Shard acquire(String shelter, boolean create) {
+        // Also validates the name of the shelter
+        if (!hasShelter(shelter) && !create) {
+            return null;
+        }
+
+        Shard shard = mShards.get(shelter);
+        if (shard == null) {
+            shard = mEvictedShards.remove(shelter);
+            if (shard != null) {
+                shard.mEvicted = false;
+                mShards.put(shelter, shard);
+                evictShards();
+            }
+        }
+        if (shard == null) {
+            PetDbHelper dbHelper = PetContract.DEFAULT_SHELTER.equals(shelter)
+                    ? PetDbHelper.getInstance(mContext)
+                    : new PetDbHelper(mContext, PetDbHelper.getDatabaseName(shelter));
+            shard = new Shard(shelter, dbHelper, new PetPhotoStore(mContext, shelter));
+            mShards.put(shelter, shard);
+            evictShards();
+        }
+        shard.mUsers++;
+        return shard;
+    }
+
+    synchronized void release(Shard shard) {
+        shard.mUsers--;
+        if (shard.mUsers == 0 && shard.mEvicted) {
+            mEvictedShards.remove(shard.shelter);
+            close(shard);
+        }
+    }
+
+    /**
+     * Evict the least recently used shards above {@link #MAX_OPEN_SHARDS}, never the default one.
+     */
+    private void evictShards() {
+        Iterator<Shard> iterator = mShards.values().iterator();
+        while (mShards.size() > MAX_OPEN_SHARDS && iterator.hasNext()) {
+            Shard shard = iterator.next();
+            if (PetContract.DEFAULT_SHELTER.equals(shard.shelter)) {
+                continue;
+            }
+            iterator.remove();
+            shard.mEvicted = true;
+            if (shard.mUsers == 0) {
+                close(shard);
+            } else {
+                mEvictedShards.put(shard.shelter, shard);
+            }
+        }
+    }
+
+    private static void close(Shard shard) {
+        Log.d(LOG_TAG, "Closing the database of shelter " + shard.shelter);
+        shard.dbHelper.close();
+    }
+
+    /**
+     * Returns the shelters that have a database, the default one first.
+     */
+    List<String> listShelters() {
+        List<String> shelters = new ArrayList<>();
+        for (String databaseName : mContext.databaseList()) {
+            String shelter = PetDbHelper.getShelter(databaseName);
+            if (shelter != null && !PetContract.DEFAULT_SHELTER.equals(shelter)) {
+                shelters.add(shelter);
+            }
+        }
+        Collections.sort(shelters);
+        shelters.add(0, PetContract.DEFAULT_SHELTER);
+        return shelters;
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+
+/**
+ * Immutable copy of the rows of a query. A snapshot can be shared freely between threads,
+ * and every reader gets its own cursor over it through {@link #newCursor()}.
+ */
+public final class PetSnapshot {
+
+    /**
+     * Rough size of an object header, used to estimate the heap used by the values
+     */
+    private static final int OBJECT_BYTES = 16;
+
+    private final String[] mColumnNames;
+
+    /**
+     * Values of the rows, one row after the other. Each value is a Long, a Double, a String,
+     * a byte[] or null, as returned by SQLite.
+     */
+    private final Object[] mValues;
+
+    private final int mCount;
+
+    /**
+     * Ids of the rows in ascending order, or null if the query has no {@link PetEntry#_ID} column
+     */
+    private final long[] mSortedIds;
+
+    /**
+     * Estimate of the heap used by the snapshot, in bytes
+     */
+    private final long mSizeBytes;
+
+    private PetSnapshot(String[] columnNames, Object[] values, int count, long[] sortedIds, long sizeBytes) {
+        mColumnNames = columnNames;
+        mValues = values;
+        mCount = count;
+        mSortedIds = sortedIds;
+        mSizeBytes = sizeBytes;
+    }
+
+    /**
+     * Copy all the rows of the given cursor, which is left open. A cursor over a snapshot,
+     * such as the cursors of the cached results of the provider, returns that snapshot
+     * without copying it.
+     */
+    public static PetSnapshot fromCursor(Cursor cursor) {
+        return fromCursor(cursor, null);
+    }
+
+    /**
+     * Same as {@link #fromCursor(Cursor)}, with the names of the {@link PetEntry#COLUMN_PET_BREED}
+     * column shared with the given breeds, if any, so that a breed repeated on many rows is
+     * held once, by the breeds, and not counted in the size of the snapshot.
+     */
+    static PetSnapshot fromCursor(Cursor cursor, PetBreeds breeds) {
+        Cursor inner = cursor;
+        while (inner instanceof CursorWrapper) {
+            inner = ((CursorWrapper) inner).getWrappedCursor();
+        }
+        if (inner instanceof SnapshotCursor) {
+            return ((SnapshotCursor) inner).getSnapshot();
+        }
+
+        String[] columnNames = cursor.getColumnNames();
+        int columnCount = columnNames.length;
+        int count = cursor.getCount();
+        Object[] values = new Object[count * columnCount];
+
+        int idIndex = cursor.getColumnIndex(PetEntry._ID);
+        int breedIndex = breeds != null ? cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED) : -1;
+        long[] ids = idIndex >= 0 ? new long[count] : null;
+
+        // Array headers and references, plus the sizes of the values added below
+        long sizeBytes = OBJECT_BYTES + 4L * values.length + (ids != null ? OBJECT_BYTES + 8L * count : 0);
+
+        cursor.moveToPosition(-1);
+        int row = 0;
+        while (cursor.moveToNext() && row < count) {
+            int offset = row * columnCount;
+            for (int column = 0; column < columnCount; column++) {
+                Object value = readValue(cursor, column);
+                Object shared = column == breedIndex && value instanceof String ? breeds.share((String) value) : null;
+                if (shared != null && shared != value) {
+                    value = shared;
+                } else {
+                    sizeBytes += estimateBytes(value);
+                }
+                values[offset + column] = value;
+            }
+            if (ids != null) {
+                ids[row] = cursor.getLong(idIndex);
+            }
+            row++;
+        }
+
+        if (ids != null) {
+            Arrays.sort(ids);
+        }
+        return new PetSnapshot(columnNames, values, row, ids, sizeBytes);
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            // The String object and its char array
+            return 2 * OBJECT_BYTES + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return OBJECT_BYTES + ((byte[]) value).length;
+        }
+        // Boxed Long or Double
+        return OBJECT_BYTES + 8;
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public String[] getColumnNames() {
+        return mColumnNames.clone();
+    }
+
+    /**
+     * Returns an estimate of the heap used by the snapshot, in bytes.
+     */
+    public long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Returns whether the rows of the snapshot carry their {@link PetEntry#_ID}.
+     */
+    public boolean hasIds() {
+        return mSortedIds != null;
+    }
+
+    /**
+     * Returns whether any of the given pets is in the snapshot.
+     */
+    public boolean containsAny(long[] ids) {
+        if (mSortedIds == null) {
+            return false;
+        }
+        for (long id : ids) {
+            if (Arrays.binarySearch(mSortedIds, id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a new cursor over the rows of the snapshot. Closing it does not affect the
+     * snapshot or the other cursors.
+     */
+    public Cursor newCursor() {
+        return new SnapshotCursor(this);
+    }
+
+    /**
+     * Read-only cursor over the rows of a {@link PetSnapshot}
+     */
+    static final class SnapshotCursor extends AbstractCursor {
+
+        private final PetSnapshot mSnapshot;
+
+        SnapshotCursor(PetSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        PetSnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mSnapshot.mColumnNames.length) {
+                throw new IndexOutOfBoundsException("Requested column " + column);
+            }
+            if (mPos < 0 || mPos >= mSnapshot.mCount) {
+                throw new IndexOutOfBoundsException("Requested row " + mPos + ", count is " + mSnapshot.mCount);
+            }
+            return mSnapshot.mValues[mPos * mSnapshot.mColumnNames.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof String) {
+                return (String) value;
+            }
+            return value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            throw new IllegalStateException("Column " + column + " is not a blob");
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.content.Loader;
+
+/**
+ * Loader of {@link PetSnapshot}s kept up to date by the {@link PetWatcher}.
+ * <p>
+ * Unlike a CursorLoader, it does not run its query again on every change of the pets table,
+ * only on the changes that can affect its result. Like a CursorLoader, it stops watching while
+ * it is stopped: the last snapshot is delivered again when it starts, followed by a fresh one.
+ */
+public class PetSnapshotLoader extends Loader<PetSnapshot> implements PetWatcher.Listener {
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+    private final Long mPetId;
+
+    private PetWatcher.Subscription mSubscription;
+    private PetSnapshot mSnapshot;
+
+    private PetSnapshotLoader(Context context, Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder, Long petId) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mPetId = petId;
+    }
+
+    /**
+     * Creates a loader of the result of a query on the provider.
+     */
+    public static PetSnapshotLoader forQuery(Context context, Uri uri, String[] projection, String selection,
+                                             String[] selectionArgs, String sortOrder) {
+        return new PetSnapshotLoader(context, uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Creates a loader of a single pet.
+     */
+    public static PetSnapshotLoader forPet(Context context, long id, String[] projection) {
+        return new PetSnapshotLoader(context, null, projection, null, null, null, id);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (mSubscription == null) {
+            subscribe();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // No query is run for a hidden screen, the subscription is made again on start
+        unsubscribe();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        unsubscribe();
+        subscribe();
+    }
+
+    @Override
+    protected void onReset() {
+        unsubscribe();
+        mSnapshot = null;
+    }
+
+    @Override
+    public void onSnapshot(PetSnapshot snapshot) {
+        mSnapshot = snapshot;
+        if (isStarted()) {
+            deliverResult(snapshot);
+        }
+    }
+
+    private void subscribe() {
+        PetWatcher watcher = PetWatcher.getInstance(getContext());
+        if (mPetId != null) {
+            mSubscription = watcher.watchPet(mPetId, mProjection, this);
+        } else {
+            mSubscription = watcher.watchQuery(mUri, mProjection, mSelection, mSelectionArgs, mSortOrder, this);
+        }
+    }
+
+    private void unsubscribe() {
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
+    }
+
+}
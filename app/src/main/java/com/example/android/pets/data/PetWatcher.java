@@ -0,0 +1,315 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the results of pet queries up to date, re-running only the queries that a change
+ * can affect.
+ * <p>
+ * Clients subscribe to a query or to a single pet, and receive an immutable
+ * {@link PetSnapshot} of the result on the main thread, first when they subscribe and then
+ * after each relevant change. The provider reports which pets a change touched (see
+ * {@link PetEntry#parseChangedIds(Uri)}), so on each change notification:
+ * <ul>
+ * <li>a single pet subscription re-queries only if its pet changed;</li>
+ * <li>a query subscription re-queries only if one of the changed pets is in its current
+ * result, or now matches it, which is checked with a primary key lookup.</li>
+ * </ul>
+ * All queries run on a single background thread shared by the whole app.
+ */
+public final class PetWatcher {
+
+    private static final String LOG_TAG = PetWatcher.class.getSimpleName();
+
+    /**
+     * Receives the snapshots of a subscription, on the main thread
+     */
+    public interface Listener {
+        void onSnapshot(PetSnapshot snapshot);
+    }
+
+    private static final long NO_PET_ID = -1;
+
+    private static PetWatcher sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null) {
+                dispatchChange(null, null);
+            } else {
+                dispatchChange(PetContract.getShelter(uri), PetEntry.parseChangedIds(uri));
+            }
+        }
+    };
+
+    /**
+     * Whether {@link #mObserver} is registered, guarded by this
+     */
+    private boolean mObserving;
+
+    private PetWatcher(Context context) {
+        mResolver = context.getContentResolver();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+
+    public static synchronized PetWatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Subscribe to the result of a query on the provider. Same arguments as
+     * {@link ContentResolver#query}; the {@link PetEntry#_ID} column is added to the
+     * projection of the rows of pets if missing, so that only the changes of their pets
+     * re-run the query. The aggregates, e.g. the sections, are re-run on any change.
+     */
+    public Subscription watchQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                   String sortOrder, Listener listener) {
+        if (!PetProvider.isAggregateUri(uri)) {
+            projection = withId(projection);
+        }
+        return subscribe(new Subscription(uri, projection, selection, selectionArgs, sortOrder,
+                NO_PET_ID, listener));
+    }
+
+    /**
+     * Subscribe to a single pet. The snapshot is empty once the pet is deleted.
+     */
+    public Subscription watchPet(long id, String[] projection, Listener listener) {
+        Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        return subscribe(new Subscription(uri, withId(projection), null, null, null, id, listener));
+    }
+
+    private static String[] withId(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        for (String column : projection) {
+            if (PetEntry._ID.equals(column)) {
+                return projection;
+            }
+        }
+        String[] withId = new String[projection.length + 1];
+        withId[0] = PetEntry._ID;
+        System.arraycopy(projection, 0, withId, 1, projection.length);
+        return withId;
+    }
+
+    private Subscription subscribe(final Subscription subscription) {
+        mSubscriptions.add(subscription);
+        synchronized (this) {
+            if (!mObserving) {
+                // The pets of every shelter, see PetContract#PATH_SHELTERS
+                mResolver.registerContentObserver(PetContract.BASE_CONTENT_URI, true, mObserver);
+                mObserving = true;
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                subscription.refresh();
+            }
+        });
+        return subscription;
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        synchronized (this) {
+            if (mObserving && mSubscriptions.isEmpty()) {
+                mResolver.unregisterContentObserver(mObserver);
+                mObserving = false;
+            }
+        }
+    }
+
+    /**
+     * Re-run the subscriptions affected by a change of the given pets.
+     *
+     * @param shelter the shelter of the changed pets, or null if any shelter may have changed
+     * @param ids     the changed pets, or null if any pet may have changed
+     */
+    private void dispatchChange(final String shelter, final long[] ids) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Subscription subscription : mSubscriptions) {
+                    if (!subscription.mCancelled && subscription.isAffectedBy(shelter, ids)) {
+                        subscription.refresh();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A query or a single pet watched by a client
+     */
+    public final class Subscription {
+
+        private final Uri mUri;
+        private final String mShelter;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final long mPetId;
+        private final Listener mListener;
+
+        /**
+         * Last snapshot of the result, only accessed on the background thread
+         */
+        private PetSnapshot mSnapshot;
+
+        private volatile boolean mCancelled;
+
+        private Subscription(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                             String sortOrder, long petId, Listener listener) {
+            mUri = uri;
+            mShelter = PetContract.getShelter(uri);
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mPetId = petId;
+            mListener = listener;
+        }
+
+        /**
+         * Stop receiving snapshots. Snapshots already posted to the main thread are dropped.
+         */
+        public void cancel() {
+            mCancelled = true;
+            unsubscribe(this);
+        }
+
+        /**
+         * Returns whether a change of the given pets can change the result. Runs on the
+         * background thread.
+         */
+        private boolean isAffectedBy(String shelter, long[] ids) {
+            if (shelter != null && !mShelter.equals(shelter) && !PetContract.ALL_SHELTERS.equals(mShelter)) {
+                return false;
+            }
+            // Across shelters the ids are ambiguous, which at worst re-runs the query needlessly
+            if (ids == null || mSnapshot == null || !mSnapshot.hasIds()) {
+                // Unknown change, first result not there yet, or aggregated result
+                return true;
+            }
+            if (mPetId != NO_PET_ID) {
+                for (long id : ids) {
+                    if (id == mPetId) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return mSnapshot.containsAny(ids) || matchesAny(ids);
+        }
+
+        /**
+         * Returns whether any of the given pets matches the query, e.g. after being inserted
+         * or after being updated to match its filters.
+         */
+        private boolean matchesAny(long[] ids) {
+            StringBuilder idSelection = new StringBuilder();
+            idSelection.append(PetEntry._ID);
+            idSelection.append(" IN (");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) {
+                    idSelection.append(",");
+                }
+                idSelection.append(ids[i]);
+            }
+            idSelection.append(")");
+
+            // A probe is never run twice, so it stays out of the query cache
+            Uri uri = mUri.buildUpon().appendQueryParameter(PetProvider.QUERY_PARAM_UNCACHED, "true").build();
+            String selection = DatabaseUtils.concatenateWhere(mSelection, idSelection.toString());
+            Cursor cursor = mResolver.query(uri, new String[]{PetEntry._ID}, selection, mSelectionArgs, null);
+            if (cursor == null) {
+                return true;
+            }
+            try {
+                return cursor.getCount() > 0;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Run the query and post the new snapshot to the listener. Runs on the background thread.
+         */
+        private void refresh() {
+            final PetSnapshot snapshot;
+            try {
+                Cursor cursor = mResolver.query(mUri, mProjection, mSelection, mSelectionArgs, mSortOrder);
+                if (cursor == null) {
+                    return;
+                }
+                try {
+                    snapshot = PetSnapshot.fromCursor(cursor);
+                } finally {
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Query of " + mUri + " failed", e);
+                return;
+            }
+
+            mSnapshot = snapshot;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onSnapshot(snapshot);
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.example.android.pets.maintenance;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetDbMaintenance;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link PetDbMaintenance} once a day, while the device is idle and charging.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PetMaintenanceJobService extends JobService {
+
+    /**
+     * Id of the maintenance job in the JobScheduler of the app
+     */
+    private static final int JOB_ID = 1;
+
+    /**
+     * Time after which a run stops starting new maintenance steps
+     */
+    private static final long BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private MaintenanceTask mTask;
+
+    /**
+     * Schedule the maintenance, unless it is already scheduled. Does nothing before Lollipop,
+     * which has no JobScheduler.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, PetMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(TimeUnit.DAYS.toMillis(1))
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mTask = new MaintenanceTask(params);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        // The maintenance goes on in the background
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The device is not idle or charging anymore: stop before the next step, retry later
+        if (mTask != null) {
+            mTask.mSignal.cancel();
+        }
+        return true;
+    }
+
+    private class MaintenanceTask extends AsyncTask<Void, Void, PetDbMaintenance.Report> {
+
+        private final JobParameters mParams;
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        MaintenanceTask(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        protected PetDbMaintenance.Report doInBackground(Void... voids) {
+            return PetDbMaintenance.run(getApplicationContext(), BUDGET_MILLIS, mSignal);
+        }
+
+        @Override
+        protected void onPostExecute(PetDbMaintenance.Report report) {
+            if (!mSignal.isCanceled()) {
+                // A run that ran out of budget goes on at the next period
+                jobFinished(mParams, false);
+            }
+        }
+    }
+
+}
@@ -7,17 +7,45 @@ import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.perf.PetFrameMonitor;
+import com.example.android.pets.photo.PetPhotoLoader;
 
 /**
  * {@link PetCursorAdapter} is an adapter for a list or grid view
  * that uses a {@link Cursor} of pet data as its data source. This adapter knows
  * how to create list items for each row of pet data in the {@link Cursor}.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends CursorAdapter implements SectionIndexer {
+
+    /**
+     * Alphabetical sections of the list, loaded separately from the pets
+     */
+    private PetSections mSections = PetSections.EMPTY;
+
+    /**
+     * Loader of the photos, and size of the photos in pixels, set when the first item is bound
+     */
+    private PetPhotoLoader mPhotoLoader;
+    private int mPhotoSize;
+
+    /**
+     * Shelter of the pets of the cursor, unless its rows carry their own
+     * {@link PetEntry#COLUMN_SHELTER}, as the rows of all the shelters do
+     */
+    private String mShelter = PetContract.DEFAULT_SHELTER;
+
+    /**
+     * Label of the pets without a breed, read once. The breed names themselves are shared by
+     * the rows of the provider's cursors, so binding allocates no string.
+     */
+    private String mUnknownBreed;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
@@ -32,6 +60,13 @@ public class PetCursorAdapter extends CursorAdapter {
         super(context, c, flags);
     }
 
+    /**
+     * Set the shelter of the pets of the cursors without a {@link PetEntry#COLUMN_SHELTER} column.
+     */
+    public void setShelter(String shelter) {
+        mShelter = shelter;
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -59,16 +94,80 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        PetFrameMonitor.beginSection(PetFrameMonitor.SECTION_BIND);
+        try {
+            bindPet(view, context, cursor);
+        } finally {
+            PetFrameMonitor.endSection();
+        }
+    }
 
+    private void bindPet(View view, Context context, Cursor cursor) {
         TextView nameView = view.findViewById(R.id.item_pet_name);
         TextView summaryView = view.findViewById(R.id.item_pet_summary);
 
         String currentName = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME));
         String currentBreed = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED));
-        currentBreed = TextUtils.isEmpty(currentBreed) ? context.getString(R.string.breed_unknown) : currentBreed;
+        if (TextUtils.isEmpty(currentBreed)) {
+            if (mUnknownBreed == null) {
+                mUnknownBreed = context.getString(R.string.breed_unknown);
+            }
+            currentBreed = mUnknownBreed;
+        }
 
         nameView.setText(currentName);
         summaryView.setText(currentBreed);
+
+        ImageView photoView = view.findViewById(R.id.item_pet_photo);
+        int photoIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
+        if (mPhotoLoader == null) {
+            mPhotoLoader = PetPhotoLoader.getInstance(context);
+            mPhotoSize = context.getResources().getDimensionPixelSize(R.dimen.list_photo_size);
+        }
+        Long photoVersion = photoIndex < 0 || cursor.isNull(photoIndex) ? null : cursor.getLong(photoIndex);
+        int shelterIndex = cursor.getColumnIndex(PetEntry.COLUMN_SHELTER);
+        String shelter = shelterIndex < 0 || cursor.isNull(shelterIndex) ? mShelter : cursor.getString(shelterIndex);
+        // Also cancels the load of the pet the view showed before being recycled
+        mPhotoLoader.loadPetPhoto(photoView, shelter, cursor.getLong(cursor.getColumnIndex(PetEntry._ID)),
+                photoVersion, mPhotoSize);
+    }
+
+    /**
+     * Cancel the photo load of a list item moved to the scrap heap, so that the items
+     * scrolled out of view don't hold the decoding threads.
+     */
+    public void onViewRecycled(View view) {
+        ImageView photoView = view.findViewById(R.id.item_pet_photo);
+        if (mPhotoLoader != null && photoView != null) {
+            mPhotoLoader.cancel(photoView);
+        }
+    }
+
+    /**
+     * Replace the alphabetical sections of the list.
+     *
+     * @param sections the new sections, or null if the list is not sorted by name
+     */
+    public void swapSections(PetSections sections) {
+        mSections = sections != null ? sections : PetSections.EMPTY;
+        // Also lets the fast scroller read the new sections
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections.getLabels();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        // Sections and pets are loaded separately, so they can briefly disagree on the count
+        return Math.min(mSections.getPositionForSection(sectionIndex), Math.max(0, getCount() - 1));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSections.getSectionForPosition(position);
     }
 
 }
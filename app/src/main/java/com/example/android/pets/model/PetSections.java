@@ -0,0 +1,85 @@
+package com.example.android.pets.model;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Alphabetical sections of the pets list, as returned by the sections URI of the provider.
+ * Used by {@link PetCursorAdapter} to let the fast scroller jump straight to the first
+ * pet of a letter.
+ */
+public class PetSections {
+
+    /**
+     * Sections of a list that is not sorted by name
+     */
+    public static final PetSections EMPTY = new PetSections(new String[0], new int[0]);
+
+    private final String[] mLabels;
+
+    /**
+     * Position in the list of the first pet of each section
+     */
+    private final int[] mPositions;
+
+    private PetSections(String[] labels, int[] positions) {
+        mLabels = labels;
+        mPositions = positions;
+    }
+
+    /**
+     * Build the sections from a cursor over the sections URI.
+     */
+    public static PetSections fromCursor(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return EMPTY;
+        }
+
+        int sectionIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_SECTION);
+        int countIndex = cursor.getColumnIndexOrThrow(PetEntry._COUNT);
+
+        String[] labels = new String[cursor.getCount()];
+        int[] positions = new int[cursor.getCount()];
+        int position = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            labels[cursor.getPosition()] = cursor.getString(sectionIndex).toUpperCase(Locale.getDefault());
+            positions[cursor.getPosition()] = position;
+            position += cursor.getInt(countIndex);
+        }
+        return new PetSections(labels, positions);
+    }
+
+    public String[] getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * Returns the position of the first pet of the given section.
+     */
+    public int getPositionForSection(int section) {
+        if (mPositions.length == 0) {
+            return 0;
+        }
+        section = Math.max(0, Math.min(section, mPositions.length - 1));
+        return mPositions[section];
+    }
+
+    /**
+     * Returns the section the pet at the given position belongs to.
+     */
+    public int getSectionForPosition(int position) {
+        if (mPositions.length == 0) {
+            return 0;
+        }
+        int section = Arrays.binarySearch(mPositions, position);
+        // When the position is not the first of a section, binarySearch returns
+        // -(index of the next section) - 1
+        return section >= 0 ? section : Math.max(0, -section - 2);
+    }
+
+}
@@ -0,0 +1,358 @@
+package com.example.android.pets.perf;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+import com.example.android.pets.BuildConfig;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Measures the frames of a list while it scrolls, and which work slowed down the slow ones.
+ * <p>
+ * The time of each frame is the time between two consecutive frame callbacks of the
+ * {@link Choreographer}. The work of the list, adapter binds and cursor moves, is timed with
+ * {@link #beginSection(int)} and {@link #endSection()}, which also show it as sections of a
+ * systrace, and charged to the frame it ran in. A frame is janky when it misses at least one
+ * vsync; its jank is attributed to the section that took most of it, or to the rest of the
+ * frame, layout and drawing, if the sections only took a small part.
+ * <p>
+ * The frame times are counted in a histogram of fixed size, so recording a frame allocates
+ * nothing. The monitor is enabled in debug builds, and in other builds with
+ * {@link #setEnabled(Context, boolean)}. All the methods must be called on the main thread.
+ */
+public final class PetFrameMonitor implements Choreographer.FrameCallback, AbsListView.OnScrollListener {
+
+    private static final String LOG_TAG = PetFrameMonitor.class.getSimpleName();
+
+    private static final String PREFS_NAME = "perf";
+    private static final String PREF_ENABLED = "frame_monitor_enabled";
+
+    public static final int SECTION_BIND = 0;
+    public static final int SECTION_CURSOR_MOVE = 1;
+    public static final int SECTION_WINDOW_FILL = 2;
+
+    private static final int SECTION_COUNT = 3;
+
+    /**
+     * Names of the sections in the systraces and in the summary
+     */
+    private static final String[] SECTION_NAMES = {"PetBind", "PetCursorMove", "PetWindowFill"};
+
+    /**
+     * Part of a janky frame a section must take to be blamed for the jank
+     */
+    private static final double BLAME_FRACTION = 0.5;
+
+    /**
+     * Width of the buckets of the frame time histogram, and number of buckets. Longer frames
+     * are counted in the last bucket.
+     */
+    private static final long BUCKET_NANOS = 250000;
+    private static final int BUCKET_COUNT = 1000;
+
+    /**
+     * Monitor of the list scrolling, charged with the sections, or null when no list scrolls
+     */
+    private static PetFrameMonitor sScrolling;
+
+    private final long mFrameIntervalNanos;
+
+    private final int[] mHistogram = new int[BUCKET_COUNT];
+    private int mFrameCount;
+    private long mMaxFrameNanos;
+    private int mJankCount;
+
+    /**
+     * Janky frames blamed on each section, and on the rest of the frames
+     */
+    private final int[] mSectionJankCounts = new int[SECTION_COUNT];
+    private int mOtherJankCount;
+
+    /**
+     * Time spent in each section since the last frame callback
+     */
+    private final long[] mSectionNanos = new long[SECTION_COUNT];
+
+    /**
+     * Section being timed and its start, -1 if none
+     */
+    private int mOpenSection = -1;
+    private long mSectionStartNanos;
+
+    private boolean mScrolling;
+
+    /**
+     * Time of the last frame callback, 0 before the first frame of a scroll
+     */
+    private long mLastFrameNanos;
+
+    private PetFrameMonitor(Context context) {
+        Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        float refreshRate = display.getRefreshRate();
+        mFrameIntervalNanos = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Returns whether the frames are monitored: always in debug builds, otherwise if enabled
+     * with {@link #setEnabled(Context, boolean)}.
+     */
+    public static boolean isEnabled(Context context) {
+        return BuildConfig.DEBUG || context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(PREF_ENABLED, false);
+    }
+
+    /**
+     * Enable or disable the monitor, from the next time a list is shown, in a build that is not
+     * a debug build, e.g. on a test device.
+     */
+    public static void setEnabled(Context context, boolean enabled) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(PREF_ENABLED, enabled).apply();
+    }
+
+    /**
+     * Monitor the scrolling of the given list, if the monitor is enabled, which replaces its
+     * scroll listener. Returns the monitor, or null if it is disabled.
+     */
+    public static PetFrameMonitor attach(ListView listView) {
+        if (!isEnabled(listView.getContext())) {
+            return null;
+        }
+        PetFrameMonitor monitor = new PetFrameMonitor(listView.getContext());
+        listView.setOnScrollListener(monitor);
+        return monitor;
+    }
+
+    /**
+     * Stop monitoring, e.g. as the list is destroyed. The frames recorded so far are kept.
+     */
+    public void detach() {
+        mScrolling = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        if (sScrolling == this) {
+            endSection();
+            sScrolling = null;
+        }
+    }
+
+    /**
+     * Start timing a section of the work of the scrolling list. Sections do not nest: a
+     * section still open is ended first. Does nothing unless a monitored list scrolls.
+     */
+    public static void beginSection(int section) {
+        PetFrameMonitor monitor = sScrolling;
+        if (monitor == null) {
+            return;
+        }
+        if (monitor.mOpenSection >= 0) {
+            endSection();
+        }
+        Trace.beginSection(SECTION_NAMES[section]);
+        monitor.mOpenSection = section;
+        monitor.mSectionStartNanos = System.nanoTime();
+    }
+
+    /**
+     * End the section started by {@link #beginSection(int)}, if any.
+     */
+    public static void endSection() {
+        PetFrameMonitor monitor = sScrolling;
+        if (monitor == null || monitor.mOpenSection < 0) {
+            return;
+        }
+        monitor.mSectionNanos[monitor.mOpenSection] += System.nanoTime() - monitor.mSectionStartNanos;
+        monitor.mOpenSection = -1;
+        Trace.endSection();
+    }
+
+    /**
+     * Returns the given cursor, wrapped to time its moves when a monitored list scrolls. The
+     * moves that fill the window of a windowed cursor are timed as {@link #SECTION_WINDOW_FILL},
+     * the others as {@link #SECTION_CURSOR_MOVE}.
+     */
+    public static Cursor wrapCursor(Cursor cursor) {
+        return cursor != null ? new MonitoredCursor(cursor) : null;
+    }
+
+    private static final class MonitoredCursor extends CursorWrapper {
+
+        /**
+         * The innermost cursor, if its rows are read through a window, else null
+         */
+        private final AbstractWindowedCursor mWindowedCursor;
+
+        MonitoredCursor(Cursor cursor) {
+            super(cursor);
+            Cursor inner = cursor;
+            while (inner instanceof CursorWrapper) {
+                inner = ((CursorWrapper) inner).getWrappedCursor();
+            }
+            mWindowedCursor = inner instanceof AbstractWindowedCursor ? (AbstractWindowedCursor) inner : null;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (sScrolling == null) {
+                return super.moveToPosition(position);
+            }
+            beginSection(fillsWindow(position) ? SECTION_WINDOW_FILL : SECTION_CURSOR_MOVE);
+            try {
+                return super.moveToPosition(position);
+            } finally {
+                endSection();
+            }
+        }
+
+        private boolean fillsWindow(int position) {
+            if (mWindowedCursor == null) {
+                return false;
+            }
+            CursorWindow window = mWindowedCursor.getWindow();
+            return window == null || position < window.getStartPosition()
+                    || position >= window.getStartPosition() + window.getNumRows();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        boolean scrolling = scrollState != SCROLL_STATE_IDLE;
+        if (scrolling == mScrolling) {
+            return;
+        }
+        mScrolling = scrolling;
+        if (scrolling) {
+            sScrolling = this;
+            mLastFrameNanos = 0;
+            clearSections();
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            detach();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    }
+
+    /**
+     * Record the frame that ended with this callback, with the sections run since the
+     * previous one.
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            recordFrame(frameTimeNanos - mLastFrameNanos);
+        }
+        mLastFrameNanos = frameTimeNanos;
+        clearSections();
+        if (mScrolling) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void recordFrame(long frameNanos) {
+        mFrameCount++;
+        mHistogram[(int) Math.min(frameNanos / BUCKET_NANOS, BUCKET_COUNT - 1)]++;
+        mMaxFrameNanos = Math.max(mMaxFrameNanos, frameNanos);
+
+        // A frame on time lasts one interval; half an interval more means a vsync was missed
+        if (frameNanos < mFrameIntervalNanos * 3 / 2) {
+            return;
+        }
+        mJankCount++;
+        int blamed = -1;
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            if (mSectionNanos[section] > frameNanos * BLAME_FRACTION
+                    && (blamed < 0 || mSectionNanos[section] > mSectionNanos[blamed])) {
+                blamed = section;
+            }
+        }
+        if (blamed >= 0) {
+            mSectionJankCounts[blamed]++;
+        } else {
+            mOtherJankCount++;
+        }
+    }
+
+    private void clearSections() {
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            mSectionNanos[section] = 0;
+        }
+    }
+
+    /**
+     * Forget the frames recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mHistogram[i] = 0;
+        }
+        mFrameCount = 0;
+        mMaxFrameNanos = 0;
+        mJankCount = 0;
+        mOtherJankCount = 0;
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            mSectionJankCounts[section] = 0;
+        }
+    }
+
+    /**
+     * Returns the summary of the frames recorded so far, e.g. "1200 frames, p50 16.75 ms,
+     * p95 17.00 ms, p99 33.50 ms, max 48.20 ms, 14 janky (PetBind 9, PetCursorMove 0,
+     * PetWindowFill 2, other 3)".
+     */
+    public String summarize() {
+        if (mFrameCount == 0) {
+            return "no frames";
+        }
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%d frames, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms, %d janky (",
+                mFrameCount, percentile(50), percentile(95), percentile(99), mMaxFrameNanos / 1e6, mJankCount));
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            sb.append(SECTION_NAMES[section]).append(' ').append(mSectionJankCounts[section]).append(", ");
+        }
+        return sb.append("other ").append(mOtherJankCount).append(')').toString();
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket holding the given percentile, in ms.
+     */
+    private double percentile(int percent) {
+        int rank = Math.max(1, (int) Math.ceil(percent / 100.0 * mFrameCount));
+        int seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+            seen += mHistogram[bucket];
+            if (seen >= rank) {
+                return (bucket + 1) * BUCKET_NANOS / 1e6;
+            }
+        }
+        return mMaxFrameNanos / 1e6;
+    }
+
+    /**
+     * Log the summary, where it can be collected from test devices with logcat.
+     */
+    public void logSummary(String name) {
+        Log.i(LOG_TAG, name + ": " + summarize());
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Frames: ");
+        writer.println(summarize());
+    }
+
+}
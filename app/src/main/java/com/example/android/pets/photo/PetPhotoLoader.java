@@ -0,0 +1,437 @@
+package com.example.android.pets.photo;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetMemoryBudget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the pet photos into image views, off the main thread.
+ * <p>
+ * Photos are decoded with the largest power of two subsampling that keeps them at least as big
+ * as the target size, then scaled down to it, so a full size photo never reaches the heap.
+ * Decoded photos are kept in a memory cache bounded in bytes, and the ones decoded for the list
+ * also in a disk cache of small thumbnails, so that scrolling back and forth never decodes the
+ * same photo twice.
+ * <p>
+ * Loading into a view cancels the previous load of the view, so recycled list items never show
+ * a stale photo. All the methods must be called on the main thread.
+ */
+public final class PetPhotoLoader {
+
+    private static final String LOG_TAG = PetPhotoLoader.class.getSimpleName();
+
+    /**
+     * Number of photos decoded at the same time
+     */
+    private static final int THREADS = 2;
+
+    private static final String DISK_CACHE_DIRECTORY = "photo_thumbnails";
+
+    private static final long DISK_CACHE_BYTES = 10 * 1024 * 1024;
+
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    /**
+     * Largest width or height of the stored photos, so that camera photos don't waste storage
+     */
+    private static final int STORED_PHOTO_SIZE = 1280;
+
+    private static final int STORED_PHOTO_QUALITY = 90;
+
+    private static PetPhotoLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskCacheDirectory;
+
+    /**
+     * Size of the disk cache in bytes, or -1 until first computed. Guarded by mDiskCacheDirectory.
+     */
+    private long mDiskCacheBytes = -1;
+
+    /**
+     * Pending load of each view
+     */
+    private final Map<ImageView, Request> mRequests = new WeakHashMap<>();
+
+    private PetPhotoLoader(Context context) {
+        mResolver = context.getContentResolver();
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int cacheBytes = activityManager.getMemoryClass() * 1024 * 1024 / (activityManager.isLowRamDevice() ? 16 : 8);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+
+        // Last in, first out: the views bound last are the ones on screen during a fling
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                }, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+
+        PetMemoryBudget.getInstance(context).register(new PetMemoryBudget.Consumer() {
+            @Override
+            public String getName() {
+                return "photo cache";
+            }
+
+            @Override
+            public long getMemoryUsage() {
+                return mMemoryCache.size();
+            }
+
+            @Override
+            public long trimMemory(int level) {
+                long before = mMemoryCache.size();
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    mMemoryCache.evictAll();
+                } else {
+                    mMemoryCache.trimToSize(mMemoryCache.size() / 2);
+                }
+                return before - mMemoryCache.size();
+            }
+        }, PetMemoryBudget.PRIORITY_CACHE);
+    }
+
+    public static synchronized PetPhotoLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetPhotoLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Load the photo of a pet into the given view, as a square thumbnail of the given size
+     * in pixels. Thumbnails are cached on disk.
+     *
+     * @param shelter the shelter of the pet, whose ids are only unique within their shelter
+     * @param version the {@link PetEntry#COLUMN_PET_PHOTO} of the pet, or null if it has no photo
+     */
+    public void loadPetPhoto(ImageView view, String shelter, long id, Long version, int size) {
+        if (version == null) {
+            cancel(view);
+            view.setImageDrawable(null);
+            return;
+        }
+        load(view, PetEntry.buildPhotoUri(shelter, id), shelter + "_" + id + "_" + version + "_" + size, true, size);
+    }
+
+    /**
+     * Load any image into the given view, e.g. a photo picked by the user, at the given size
+     * in pixels. The image is not cached on disk.
+     */
+    public void loadImage(ImageView view, Uri uri, int size) {
+        load(view, uri, uri + "_" + size, false, size);
+    }
+
+    /**
+     * Cancel the pending load of the given view, if any, e.g. when it is recycled.
+     */
+    public void cancel(ImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null) {
+            request.mCancelled = true;
+            request.mFuture.cancel(false);
+        }
+    }
+
+    private void load(ImageView view, Uri source, String key, boolean diskCache, int size) {
+        cancel(view);
+
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        Request request = new Request(view, source, key, diskCache, size);
+        mRequests.put(view, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Store a new photo for a pet, off the main thread. The image is scaled down to
+     * {@link #STORED_PHOTO_SIZE} and written as a JPEG through the provider.
+     *
+     * @param source the image, opened by the caller so that it can still be read after the
+     *               caller lost the permission to open it; closed once stored
+     */
+    public void storePetPhoto(final String shelter, final long id, final ParcelFileDescriptor source) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bitmap bitmap = decode(null, source, STORED_PHOTO_SIZE, false);
+                    if (bitmap == null) {
+                        return;
+                    }
+                    OutputStream out = mResolver.openOutputStream(PetEntry.buildPhotoUri(shelter, id), "w");
+                    if (out == null) {
+                        return;
+                    }
+                    try {
+                        bitmap.compress(Bitmap.CompressFormat.JPEG, STORED_PHOTO_QUALITY, out);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Cannot store the photo of pet " + id, e);
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Cannot close the photo of pet " + id, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode the given image, downsampled while decoding and then scaled down.
+     *
+     * @param source the image, read through the provider when descriptor is null
+     * @param descriptor the image, already opened
+     * @param size  target size in pixels
+     * @param cover whether the image must cover a size x size square, as a thumbnail does,
+     *              rather than fit in it
+     * @return the image, or null if it can't be read
+     */
+    private Bitmap decode(Uri source, ParcelFileDescriptor descriptor, int size, boolean cover) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeSource(source, descriptor, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(LOG_TAG, "Cannot decode " + (source != null ? source : descriptor));
+                return null;
+            }
+
+            int reference = cover ? Math.min(options.outWidth, options.outHeight)
+                    : Math.max(options.outWidth, options.outHeight);
+            int sampleSize = 1;
+            while (reference / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            Bitmap bitmap = decodeSource(source, descriptor, options);
+            if (bitmap == null) {
+                return null;
+            }
+
+            reference = cover ? Math.min(bitmap.getWidth(), bitmap.getHeight())
+                    : Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (reference > size) {
+                float scale = (float) size / reference;
+                bitmap = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                        Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            }
+            return bitmap;
+        } catch (IOException | SecurityException e) {
+            Log.w(LOG_TAG, "Cannot read " + (source != null ? source : descriptor), e);
+            return null;
+        }
+    }
+
+    private Bitmap decodeSource(Uri source, ParcelFileDescriptor descriptor, BitmapFactory.Options options)
+            throws IOException {
+        if (descriptor != null) {
+            // Leaves the position of the descriptor unchanged, so it can be decoded twice
+            return BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+        }
+        InputStream in = mResolver.openInputStream(source);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Bitmap readThumbnail(String key) {
+        File file = new File(mDiskCacheDirectory, key + ".jpg");
+        if (!file.exists()) {
+            return null;
+        }
+        // Keeps the recently used thumbnails last to be evicted
+        file.setLastModified(System.currentTimeMillis());
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    private void writeThumbnail(String key, Bitmap bitmap) {
+        synchronized (mDiskCacheDirectory) {
+            if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) {
+                return;
+            }
+            File file = new File(mDiskCacheDirectory, key + ".jpg");
+            File temp = new File(mDiskCacheDirectory, key + ".tmp");
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Cannot write " + file, e);
+                temp.delete();
+                return;
+            }
+
+            if (mDiskCacheBytes < 0) {
+                mDiskCacheBytes = 0;
+                File[] files = mDiskCacheDirectory.listFiles();
+                for (File cached : files != null ? files : new File[0]) {
+                    mDiskCacheBytes += cached.length();
+                }
+            } else {
+                mDiskCacheBytes += file.length();
+            }
+            if (mDiskCacheBytes > DISK_CACHE_BYTES) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails, down to three quarters of the disk cache size
+     */
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+            }
+        });
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        for (int i = 0; i < files.length && bytes > DISK_CACHE_BYTES * 3 / 4; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                bytes -= length;
+            }
+        }
+        mDiskCacheBytes = bytes;
+    }
+
+    /**
+     * Load of an image into a view
+     */
+    private final class Request implements Runnable {
+
+        private final WeakReference<ImageView> mView;
+        private final Uri mSource;
+        private final String mKey;
+        private final boolean mDiskCache;
+        private final int mSize;
+
+        private Future<?> mFuture;
+        private volatile boolean mCancelled;
+
+        private Request(ImageView view, Uri source, String key, boolean diskCache, int size) {
+            mView = new WeakReference<>(view);
+            mSource = source;
+            mKey = key;
+            mDiskCache = diskCache;
+            mSize = size;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+
+            Bitmap bitmap = mDiskCache ? readThumbnail(mKey) : null;
+            if (bitmap == null && !mCancelled) {
+                bitmap = decode(mSource, null, mSize, true);
+                if (bitmap != null && mDiskCache) {
+                    writeThumbnail(mKey, bitmap);
+                }
+            }
+            if (bitmap == null) {
+                return;
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mMemoryCache.put(mKey, result);
+                    ImageView view = mView.get();
+                    if (!mCancelled && view != null && mRequests.get(view) == Request.this) {
+                        mRequests.remove(view);
+                        view.setImageBitmap(result);
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.example.android.pets.stress;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latencies of one kind of operation. Not thread safe: each worker records into its own
+ * instance, and the instances are merged at the end of the run.
+ */
+class LatencyStats {
+
+    private long[] mNanos = new long[1024];
+    private int mCount;
+
+    void record(long nanos) {
+        if (mCount == mNanos.length) {
+            mNanos = Arrays.copyOf(mNanos, mCount * 2);
+        }
+        mNanos[mCount++] = nanos;
+    }
+
+    void addAll(LatencyStats other) {
+        for (int i = 0; i < other.mCount; i++) {
+            record(other.mNanos[i]);
+        }
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the summary of the latencies, sorting them in the process
+     */
+    String summarize() {
+        if (mCount == 0) {
+            return "no operations";
+        }
+        Arrays.sort(mNanos, 0, mCount);
+        return String.format(Locale.US, "%d ops, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                mCount, percentile(50), percentile(95), percentile(99), mNanos[mCount - 1] / 1e6);
+    }
+
+    private double percentile(int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * mCount) - 1;
+        return mNanos[Math.max(0, Math.min(index, mCount - 1))] / 1e6;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.example.android.pets.stress;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic pets, always the same ones for the same seed.
+ */
+class PetGenerator {
+
+    private static final String[] SYLLABLES = {
+            "ba", "bo", "ci", "da", "fe", "gu", "ki", "lo", "ma", "mi",
+            "no", "pa", "ro", "sa", "te", "to", "vi", "zu"};
+
+    private static final String[] BREEDS = {
+            "", "Terrier", "Beagle", "Poodle", "Labrador", "Husky", "Boxer", "Dalmatian",
+            "Siamese", "Persian", "Maine Coon", "Sphynx", "Bengal", "Ragdoll", "Angora", "Lop"};
+
+    private final Random mRandom;
+
+    /**
+     * Prefix of all the names, used to tell the generated pets apart from the real ones
+     */
+    private final String mNamePrefix;
+
+    PetGenerator(long seed, String namePrefix) {
+        mRandom = new Random(seed);
+        mNamePrefix = namePrefix;
+    }
+
+    ContentValues nextPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, nextName());
+        values.put(PetEntry.COLUMN_PET_BREED, nextBreed());
+        values.put(PetEntry.COLUMN_PET_GENDER, nextGender());
+        values.put(PetEntry.COLUMN_PET_WEIGHT, nextWeight());
+        return values;
+    }
+
+    String nextName() {
+        StringBuilder sb = new StringBuilder(mNamePrefix);
+        int syllables = 2 + mRandom.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            sb.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+        }
+        return sb.toString();
+    }
+
+    String nextBreed() {
+        return BREEDS[mRandom.nextInt(BREEDS.length)];
+    }
+
+    int nextGender() {
+        return mRandom.nextInt(3);
+    }
+
+    int nextWeight() {
+        return 1 + mRandom.nextInt(60);
+    }
+
+}
@@ -0,0 +1,544 @@
+package com.example.android.pets.stress;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a mixed read/insert/update/delete workload against the pet provider from many threads,
+ * and checks that no rows and no change notifications are lost on the way. Runs on the JVM with
+ * the unit tests (see PetStressHarnessTest), and on devices through the debug PetStressActivity.
+ * <p>
+ * Every pet being written is owned by one worker at a time, so the harness knows exactly which
+ * notifications to expect for it: one for its insert and one for every update or delete that
+ * changed it.
+ */
+public class PetStressHarness {
+
+    public static final String LOG_TAG = PetStressHarness.class.getSimpleName();
+
+    private static final int OP_READ = 0;
+    private static final int OP_INSERT = 1;
+    private static final int OP_UPDATE = 2;
+    private static final int OP_DELETE = 3;
+    private static final int OP_BULK_UPDATE = 4;
+
+    private static final String[] OP_NAMES = {"read", "insert", "update", "delete", "bulk update"};
+
+    /**
+     * Number of pets changed by a bulk update
+     */
+    private static final int BULK_SIZE = 20;
+
+    /**
+     * Number of pets seeded per transaction
+     */
+    private static final int SEED_BATCH_SIZE = 500;
+
+    /**
+     * Quiet time after which the notifications still in flight are considered lost
+     */
+    private static final long NOTIFICATION_QUIET_MILLIS = 2000;
+
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 30000;
+
+    private static final String[] SORTS = {
+            null, PetEntry.SORT_NAME_ASC, PetEntry.SORT_NAME_DESC, PetEntry.SORT_WEIGHT_ASC, PetEntry.SORT_WEIGHT_DESC};
+
+    /**
+     * Size and shape of a run.
+     */
+    public static class Config {
+
+        /**
+         * Pets written straight to the database before the workers start
+         */
+        public int seedPets = 10000;
+
+        public int threads = 8;
+
+        public int opsPerThread = 1000;
+
+        /**
+         * Relative weights of the operations, in the order read, insert, update, delete, bulk update
+         */
+        public int[] mix = {60, 15, 15, 5, 5};
+
+        public long seed = 42;
+
+        /**
+         * Whether to delete the generated pets at the end of the run
+         */
+        public boolean cleanUp = true;
+
+        @Override
+        public String toString() {
+            return "seedPets=" + seedPets + " threads=" + threads + " opsPerThread=" + opsPerThread
+                    + " mix=" + mix[0] + "/" + mix[1] + "/" + mix[2] + "/" + mix[3] + "/" + mix[4]
+                    + " seed=" + seed;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Config mConfig;
+    private final String mNamePrefix;
+
+    /**
+     * Pets that exist and are not being written by any worker
+     */
+    private final LinkedBlockingDeque<Long> mAvailableIds = new LinkedBlockingDeque<>();
+
+    /**
+     * Pets deleted during the run
+     */
+    private final Map<Long, Boolean> mDeletedIds = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, AtomicInteger> mExpectedNotifications = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, AtomicInteger> mReceivedNotifications = new ConcurrentHashMap<>();
+    private final AtomicInteger mUnattributedNotifications = new AtomicInteger();
+    private final AtomicLong mLastNotificationTime = new AtomicLong();
+
+    private final ConcurrentHashMap<String, AtomicInteger> mErrors = new ConcurrentHashMap<>();
+    private final List<String> mViolations = new ArrayList<>();
+
+    public PetStressHarness(Context context, Config config) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mConfig = config;
+        // A prefix unique to the run, so that the harness never touches the real pets
+        mNamePrefix = "~stress" + Long.toString(System.currentTimeMillis(), 36) + " ";
+    }
+
+    /**
+     * Run the workload and check the invariants. Blocks until done, so must not be called
+     * on the main thread.
+     */
+    public PetStressReport run() throws InterruptedException {
+        PetStressReport report = new PetStressReport(mConfig);
+
+        long seedStart = elapsedMillis();
+        seed();
+        report.seedMillis = elapsedMillis() - seedStart;
+
+        // Observe on a thread of its own, so that a slow main thread can't hold notifications back
+        HandlerThread observerThread = new HandlerThread(LOG_TAG + "Observer");
+        observerThread.start();
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onPetsChanged(uri);
+            }
+        };
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true, observer);
+
+        final LatencyStats[][] latencies = new LatencyStats[mConfig.threads][OP_NAMES.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(mConfig.threads);
+        for (int t = 0; t < mConfig.threads; t++) {
+            final int worker = t;
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                latencies[worker][op] = new LatencyStats();
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        runWorker(worker, latencies[worker]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, LOG_TAG + "Worker" + t);
+            thread.start();
+        }
+
+        long runStart = elapsedMillis();
+        start.countDown();
+        done.await();
+        report.runMillis = elapsedMillis() - runStart;
+
+        awaitNotifications();
+        mResolver.unregisterContentObserver(observer);
+        observerThread.quit();
+
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            LatencyStats merged = new LatencyStats();
+            for (int t = 0; t < mConfig.threads; t++) {
+                merged.addAll(latencies[t][op]);
+            }
+            report.totalOps += merged.getCount();
+            report.latencies.put(OP_NAMES[op], merged.summarize());
+        }
+
+        checkRows();
+        checkNotifications(report);
+
+        for (Map.Entry<String, AtomicInteger> error : mErrors.entrySet()) {
+            report.errors.put(error.getKey(), error.getValue().get());
+        }
+        report.violations.addAll(mViolations);
+
+        if (mConfig.cleanUp) {
+            cleanUp();
+        }
+
+        return report;
+    }
+
+    /**
+     * Write the initial pets straight to the database, as an importer would, without notifying.
+     */
+    private void seed() {
+        PetGenerator generator = new PetGenerator(mConfig.seed, mNamePrefix);
+        SQLiteDatabase db = PetDbHelper.getInstance(mContext).getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                + PetEntry.COLUMN_PET_NAME + ", " + PetDbHelper.COLUMN_BREED_ID + ", "
+                + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+        try {
+            int seeded = 0;
+            while (seeded < mConfig.seedPets) {
+                db.beginTransaction();
+                try {
+                    int batchEnd = Math.min(seeded + SEED_BATCH_SIZE, mConfig.seedPets);
+                    for (; seeded < batchEnd; seeded++) {
+                        insert.bindString(1, generator.nextName());
+                        insert.bindLong(2, PetDbHelper.internBreed(db, generator.nextBreed()));
+                        insert.bindLong(3, generator.nextGender());
+                        insert.bindLong(4, generator.nextWeight());
+                        mAvailableIds.add(insert.executeInsert());
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private void runWorker(int worker, LatencyStats[] latencies) {
+        Random random = new Random(mConfig.seed + worker + 1);
+        PetGenerator generator = new PetGenerator(mConfig.seed + worker + 1, mNamePrefix);
+        int totalWeight = 0;
+        for (int weight : mConfig.mix) {
+            totalWeight += weight;
+        }
+
+        for (int i = 0; i < mConfig.opsPerThread; i++) {
+            int pick = random.nextInt(totalWeight);
+            int op = 0;
+            while (pick >= mConfig.mix[op]) {
+                pick -= mConfig.mix[op];
+                op++;
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                switch (op) {
+                    case OP_READ:
+                        read(random);
+                        break;
+                    case OP_INSERT:
+                        insert(generator);
+                        break;
+                    case OP_UPDATE:
+                        update(generator);
+                        break;
+                    case OP_DELETE:
+                        delete();
+                        break;
+                    case OP_BULK_UPDATE:
+                        bulkUpdate(generator);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                recordError(OP_NAMES[op], e);
+            }
+            latencies[op].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void read(Random random) {
+        Integer gender = random.nextBoolean() ? null : random.nextInt(3);
+        Uri uri = PetEntry.buildCatalogUri(SORTS[random.nextInt(SORTS.length)], gender, null);
+        Cursor cursor = mResolver.query(uri, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME}, null, null, null);
+        if (cursor == null) {
+            violation("Catalog query returned no cursor for " + uri);
+            return;
+        }
+        try {
+            // Walk the whole window, as a scrolling list would
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insert(PetGenerator generator) {
+        Uri uri = mResolver.insert(PetEntry.CONTENT_URI, generator.nextPet());
+        if (uri == null) {
+            violation("Insert returned no URI");
+            return;
+        }
+        long id = ContentUris.parseId(uri);
+        expectNotification(id);
+        mAvailableIds.add(id);
+    }
+
+    private void update(PetGenerator generator) {
+        Long id = mAvailableIds.pollFirst();
+        if (id == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, generator.nextWeight());
+            int rows = mResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), values, null, null);
+            if (rows == 1) {
+                expectNotification(id);
+            } else {
+                violation("Update of pet " + id + " changed " + rows + " rows");
+            }
+        } finally {
+            mAvailableIds.addLast(id);
+        }
+    }
+
+    private void delete() {
+        Long id = mAvailableIds.pollFirst();
+        if (id == null) {
+            return;
+        }
+        int rows;
+        try {
+            rows = mResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null);
+        } catch (RuntimeException e) {
+            // The pet may still be there
+            mAvailableIds.addLast(id);
+            throw e;
+        }
+        if (rows == 1) {
+            expectNotification(id);
+            mDeletedIds.put(id, Boolean.TRUE);
+        } else {
+            violation("Delete of pet " + id + " removed " + rows + " rows");
+        }
+    }
+
+    private void bulkUpdate(PetGenerator generator) {
+        long[] ids = new long[BULK_SIZE];
+        int count = 0;
+        Long id;
+        while (count < BULK_SIZE && (id = mAvailableIds.pollFirst()) != null) {
+            ids[count++] = id;
+        }
+        if (count < BULK_SIZE) {
+            long[] taken = new long[count];
+            System.arraycopy(ids, 0, taken, 0, count);
+            ids = taken;
+        }
+
+        try {
+            Bundle extras = new Bundle();
+            extras.putLongArray(PetEntry.EXTRA_IDS, ids);
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_BREED, generator.nextBreed());
+            extras.putParcelable(PetEntry.EXTRA_VALUES, values);
+            Bundle result = mResolver.call(PetEntry.CONTENT_URI, PetEntry.METHOD_BULK_UPDATE, null, extras);
+
+            int rows = result != null ? result.getInt(PetEntry.EXTRA_ROW_COUNT) : -1;
+            if (rows == ids.length) {
+                if (rows > 0) {
+                    for (long changedId : ids) {
+                        expectNotification(changedId);
+                    }
+                }
+            } else {
+                violation("Bulk update of " + ids.length + " pets changed " + rows + " rows");
+            }
+        } finally {
+            for (long takenId : ids) {
+                mAvailableIds.addLast(takenId);
+            }
+        }
+    }
+
+    private void onPetsChanged(Uri uri) {
+        mLastNotificationTime.set(elapsedMillis());
+        long[] ids = PetEntry.parseChangedIds(uri);
+        if (ids == null) {
+            mUnattributedNotifications.incrementAndGet();
+            return;
+        }
+        for (long id : ids) {
+            increment(mReceivedNotifications, id);
+        }
+    }
+
+    private void expectNotification(long id) {
+        increment(mExpectedNotifications, id);
+    }
+
+    private static <K> void increment(ConcurrentHashMap<K, AtomicInteger> counters, K key) {
+        AtomicInteger counter = counters.get(key);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Wait until the notifications stop arriving, or until they all did.
+     */
+    private void awaitNotifications() throws InterruptedException {
+        long deadline = elapsedMillis() + NOTIFICATION_TIMEOUT_MILLIS;
+        mLastNotificationTime.set(elapsedMillis());
+        while (elapsedMillis() < deadline
+                && elapsedMillis() - mLastNotificationTime.get() < NOTIFICATION_QUIET_MILLIS) {
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Check that every pet still owned by the harness is in the table, and no deleted one is.
+     */
+    private void checkRows() {
+        List<Long> alive = new ArrayList<>(mAvailableIds);
+        int found = countExisting(alive);
+        if (found != alive.size()) {
+            violation((alive.size() - found) + " of " + alive.size() + " pets were lost");
+        }
+
+        List<Long> deleted = new ArrayList<>(mDeletedIds.keySet());
+        int resurrected = countExisting(deleted);
+        if (resurrected > 0) {
+            violation(resurrected + " of " + deleted.size() + " deleted pets are still there");
+        }
+
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                PetEntry.COLUMN_PET_NAME + " >= ? AND " + PetEntry.COLUMN_PET_NAME + " < ?",
+                prefixRange(), null);
+        if (cursor != null) {
+            try {
+                if (cursor.getCount() != alive.size()) {
+                    violation(cursor.getCount() + " generated pets in the table, " + alive.size() + " expected");
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private int countExisting(List<Long> ids) {
+        int found = 0;
+        for (int from = 0; from < ids.size(); from += BULK_SIZE * 10) {
+            List<Long> chunk = ids.subList(from, Math.min(from + BULK_SIZE * 10, ids.size()));
+            StringBuilder selection = new StringBuilder(PetEntry._ID + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i > 0 ? "," : "").append(chunk.get(i));
+            }
+            selection.append(")");
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                    selection.toString(), null, null);
+            if (cursor != null) {
+                found += cursor.getCount();
+                cursor.close();
+            }
+        }
+        return found;
+    }
+
+    private void checkNotifications(PetStressReport report) {
+        for (Map.Entry<Long, AtomicInteger> entry : mExpectedNotifications.entrySet()) {
+            AtomicInteger received = mReceivedNotifications.get(entry.getKey());
+            int difference = entry.getValue().get() - (received != null ? received.get() : 0);
+            if (difference > 0) {
+                report.missedNotifications += difference;
+            } else {
+                report.duplicatedNotifications -= difference;
+            }
+        }
+        for (Map.Entry<Long, AtomicInteger> entry : mReceivedNotifications.entrySet()) {
+            if (!mExpectedNotifications.containsKey(entry.getKey())) {
+                report.duplicatedNotifications += entry.getValue().get();
+            }
+        }
+        report.unattributedNotifications = mUnattributedNotifications.get();
+
+        if (report.missedNotifications > 0) {
+            violation(report.missedNotifications + " change notifications were missed");
+        }
+        if (report.duplicatedNotifications > 0) {
+            violation(report.duplicatedNotifications + " change notifications were duplicated");
+        }
+    }
+
+    private void cleanUp() {
+        int rows = mResolver.delete(PetEntry.CONTENT_URI,
+                PetEntry.COLUMN_PET_NAME + " >= ? AND " + PetEntry.COLUMN_PET_NAME + " < ?", prefixRange());
+        Log.i(LOG_TAG, "Deleted " + rows + " generated pets");
+    }
+
+    /**
+     * Bounds of the names starting with the prefix of the run, as a range the name index can seek
+     */
+    private String[] prefixRange() {
+        return new String[]{mNamePrefix, mNamePrefix.substring(0, mNamePrefix.length() - 1) + "!"};
+    }
+
+    /**
+     * Returns the time elapsed since an arbitrary origin, from the clock of the JVM: on the
+     * JVM tests, the SystemClock of Android only moves when the tests move it.
+     */
+    private static long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void recordError(String op, RuntimeException e) {
+        Log.w(LOG_TAG, "Failed " + op, e);
+        increment(mErrors, op + ": " + e.getClass().getSimpleName());
+    }
+
+    private void violation(String message) {
+        Log.e(LOG_TAG, message);
+        synchronized (mViolations) {
+            mViolations.add(message);
+        }
+    }
+
+}
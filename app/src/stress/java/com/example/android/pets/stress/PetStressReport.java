@@ -0,0 +1,82 @@
+package com.example.android.pets.stress;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a run of {@link PetStressHarness}.
+ */
+public class PetStressReport {
+
+    final PetStressHarness.Config config;
+
+    long seedMillis;
+    long runMillis;
+    int totalOps;
+
+    /**
+     * Latency summary of each kind of operation
+     */
+    final Map<String, String> latencies = new LinkedHashMap<>();
+
+    /**
+     * Number of failed operations by operation and exception
+     */
+    final Map<String, Integer> errors = new TreeMap<>();
+
+    final List<String> violations = new ArrayList<>();
+
+    int missedNotifications;
+    int duplicatedNotifications;
+
+    /**
+     * Notifications that didn't say which pets changed, which the observers must treat as
+     * a change of every pet
+     */
+    int unattributedNotifications;
+
+    PetStressReport(PetStressHarness.Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Whether the run kept all the invariants. Errors alone don't fail a run, as long as
+     * the provider was left consistent.
+     */
+    public boolean passed() {
+        return violations.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(passed() ? "PASSED" : "FAILED").append('\n');
+        sb.append(config).append('\n');
+        sb.append(String.format(Locale.US, "seeded %d pets in %d ms\n", config.seedPets, seedMillis));
+        sb.append(String.format(Locale.US, "%d ops in %d ms, %.1f ops/s\n",
+                totalOps, runMillis, runMillis > 0 ? totalOps * 1000.0 / runMillis : 0));
+
+        for (Map.Entry<String, String> entry : latencies.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+
+        sb.append("errors: ").append(errors.isEmpty() ? "none" : "").append('\n');
+        for (Map.Entry<String, Integer> entry : errors.entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(" x").append(entry.getValue()).append('\n');
+        }
+
+        sb.append(String.format(Locale.US, "notifications: %d missed, %d duplicated, %d unattributed\n",
+                missedNotifications, duplicatedNotifications, unattributedNotifications));
+
+        sb.append("violations: ").append(violations.isEmpty() ? "none" : "").append('\n');
+        for (String violation : violations) {
+            sb.append("  ").append(violation).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
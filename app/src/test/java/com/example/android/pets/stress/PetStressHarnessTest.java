@@ -0,0 +1,53 @@
+package com.example.android.pets.stress;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the stress harness on the JVM, against the provider and a real SQLite database
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class PetStressHarnessTest {
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(PetProvider.class).create(PetContract.CONTENT_AUTHORITY);
+    }
+
+    @Test
+    public void mixedWorkloadLosesNoRowsNorNotifications() throws InterruptedException {
+        PetStressHarness.Config config = new PetStressHarness.Config();
+        config.seedPets = 2000;
+        config.threads = 4;
+        config.opsPerThread = 250;
+
+        PetStressReport report = new PetStressHarness(RuntimeEnvironment.application, config).run();
+
+        assertTrue(report.toString(), report.passed());
+    }
+
+    @Test
+    public void writeHeavyWorkloadLosesNoRowsNorNotifications() throws InterruptedException {
+        PetStressHarness.Config config = new PetStressHarness.Config();
+        config.seedPets = 500;
+        config.threads = 8;
+        config.opsPerThread = 150;
+        config.mix = new int[]{10, 30, 30, 15, 15};
+
+        PetStressReport report = new PetStressHarness(RuntimeEnvironment.application, config).run();
+
+        assertTrue(report.toString(), report.passed());
+    }
+
+}